@@ -5,11 +5,14 @@ package ch.sbb.intermodalfreight.prepare.supply;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -28,6 +31,7 @@ import org.matsim.core.network.NetworkChangeEvent.ChangeValue;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.collections.QuadTree;
 import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.TransitLine;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
@@ -54,6 +58,16 @@ import org.matsim.vehicles.VehiclesFactory;
 public class GenerateCargoSupply {
 	private static final Logger log = LogManager.getLogger(GenerateCargoSupply.class);
 	
+	/**
+	 * Transit stop attribute which contains the comma-separated IDs of the terminal's truck-stack queue links (crane links).
+	 */
+	public static final String QUEUE_LINKS_ATTRIBUTE = "queueLinks";
+	
+	/**
+	 * Transit stop attribute which contains the comma-separated IDs of the terminal's stack links (between the crane and the transit stop).
+	 */
+	public static final String STACK_LINKS_ATTRIBUTE = "stackLinks";
+	
 	private final String carAccessibleAttributePrefix = "accessible_";
 	private final double railCraneGap = 500.;
 	private final double xCoordGapRailInOut = 500.;
@@ -69,6 +83,7 @@ public class GenerateCargoSupply {
 	
 	private final Scenario scenario;
 	private final Network carOnlyNetwork;
+	private final QuadTree<Node> connectableCarNodes;
 	private final Map<String, Terminal> terminals = new HashMap<>();	
 	private final TransitSchedule schedule;
 	private final Vehicles vehicles;
@@ -114,6 +129,23 @@ public class GenerateCargoSupply {
 				}
 			}
 		}
+		
+		this.connectableCarNodes = createConnectableNodesIndex(carOnlyNetwork);
+	}
+	
+	/**
+	 * @return a spatial index which only contains the nodes with both ingoing and outgoing links
+	 */
+	private static QuadTree<Node> createConnectableNodesIndex(Network network) {
+		double[] boundingBox = NetworkUtils.getBoundingBox(network.getNodes().values());
+		QuadTree<Node> index = new QuadTree<>(boundingBox[0], boundingBox[1], boundingBox[2], boundingBox[3]);
+		for (Node node : network.getNodes().values()) {
+			if (!node.getInLinks().isEmpty() && !node.getOutLinks().isEmpty()) {
+				index.put(node.getCoord().getX(), node.getCoord().getY(), node);
+			}
+		}
+		log.info("Number of car nodes which can be connected to a terminal: " + index.size());
+		return index;
 	}
 
 	private Link addLink(String name, double length, Node fromNode, Node toNode, Set<String> modes, double capacity, double freespeed, double lanes) {
@@ -129,30 +161,72 @@ public class GenerateCargoSupply {
         return link;
 	}
     
-    private static Node getNearestNode(Network network, final Coord coord) {
-        Node nearestNode = NetworkUtils.getNearestNode((network),coord);
-        if ( nearestNode == null ) {
-            throw new RuntimeException("Could not find a nearest node. Aborting...") ;
+    /**
+     * The spatial index contains the nodes of the car only network. The returned node is the node with the same id in the scenario network,
+     * i.e. the node to which the terminal is connected. If several nodes have the same distance, the node with the lowest id is returned.
+     * 
+     * @return the nearest node with both ingoing and outgoing links in the car only network
+     */
+    Node getNearestNode(final Coord coord) {
+        if (this.connectableCarNodes.size() == 0) {
+            throw new RuntimeException("The car only network does not contain any node with both ingoing and outgoing links. Aborting...") ;
         }
-
-        if ( nearestNode.getInLinks().isEmpty() || nearestNode.getOutLinks().isEmpty() ) {
-        	
-        	int extensionRadius = 1000;
-        	for (int radius = extensionRadius; radius <= 1000000; radius = radius + extensionRadius) {
-        		for (Node node : NetworkUtils.getNearestNodes(network, coord, radius)) {
-        			 if ( node.getInLinks().isEmpty() || node.getOutLinks().isEmpty() ) {
-         	        	// skip (we need both ingoing Links and outgoing Links)
-         	        } else {
-         	        	return node;
-         	        }
-        		}
+        Node nearestNode = this.connectableCarNodes.getClosest(coord.getX(), coord.getY());
+        double nearestDistance = NetworkUtils.getEuclideanDistance(coord, nearestNode.getCoord());
+        
+        // the spatial index returns any of the nodes with the same distance; the radius is slightly increased to not miss any node due to rounding
+        for (Node node : this.connectableCarNodes.getDisk(coord.getX(), coord.getY(), nearestDistance + 1.e-6)) {
+        	double distance = NetworkUtils.getEuclideanDistance(coord, node.getCoord());
+        	if (distance < nearestDistance || (distance == nearestDistance && node.getId().compareTo(nearestNode.getId()) < 0)) {
+        		nearestNode = node;
+        		nearestDistance = distance;
         	}
-        	throw new RuntimeException("The nearest node has either no ingoing or no outgoing links. [node = " + nearestNode.getId() + "] Couldn't find any other node around the coordinate. Maybe increase the maximum radius?"  ) ;
         }
-
-        return nearestNode;
+        
+        Node scenarioNode = this.network.getNodes().get(nearestNode.getId());
+        if (scenarioNode == null) {
+            throw new RuntimeException("The node " + nearestNode.getId() + " of the car only network is not contained in the scenario network. Aborting...") ;
+        }
+        return scenarioNode;
     }
 
+	/**
+	 * The coordinates and road network nodes which are required to add a terminal, computed independently of the other terminals.
+	 */
+	private static final class TerminalPlan {
+		private final Terminal terminal;
+		private final Coord tInCoord;
+		private final Coord xA1Coord;
+		private final Coord xB1Coord;
+		private final Node nearestNodeXA2;
+		private final Node nearestNodeXB2;
+		
+		private TerminalPlan(Terminal terminal, Coord tInCoord, Coord xA1Coord, Coord xB1Coord, Node nearestNodeXA2, Node nearestNodeXB2) {
+			this.terminal = terminal;
+			this.tInCoord = tInCoord;
+			this.xA1Coord = xA1Coord;
+			this.xB1Coord = xB1Coord;
+			this.nearestNodeXA2 = nearestNodeXA2;
+			this.nearestNodeXB2 = nearestNodeXB2;
+		}
+	}
+	
+	/**
+	 * 
+	 * Creates the terminals (transit stop + access/egress links) and connects the terminals to the road network.
+	 * 
+	 * The geometry and the nearest road network nodes are computed in parallel, the terminals are then added to the network and transit schedule
+	 * one after the other in the given order, i.e. the result is the same as adding the terminals one by one.
+	 * 
+	 * @param terminals
+	 */
+	public void addTerminalsAndConnectToRoadNetwork(Collection<Terminal> terminals) {
+		List<TerminalPlan> plans = terminals.parallelStream().map(this::planTerminal).collect(Collectors.toList());
+		for (TerminalPlan plan : plans) {
+			addTerminalAndConnectToRoadNetwork(plan);
+		}
+	}
+
 	/**
 	 * 
 	 * Creates the terminal (transit stop + access/egress links) and connects the terminal to the road network.
@@ -160,10 +234,34 @@ public class GenerateCargoSupply {
 	 * @param terminal
 	 */
 	public void addTerminalAndConnectToRoadNetwork(Terminal terminal) {
+		addTerminalAndConnectToRoadNetwork(planTerminal(terminal));
+	}
+	
+	/**
+	 * Computes the terminal geometry and the nearest road network nodes. Only reads the car only network and the nodes of the scenario network,
+	 * i.e. may be called in parallel as long as the scenario network is not modified.
+	 */
+	private TerminalPlan planTerminal(Terminal terminal) {
+		Coord tInCoord = new Coord(terminal.getCoord().getX() - xCoordGapRailInOut , terminal.getCoord().getY());
+		
+		// the crane link XA1->XB1 runs parallel to the terminal link
+        LineSegment ls = new LineSegment(tInCoord.getX(), tInCoord.getY(), terminal.getCoord().getX(), terminal.getCoord().getY()); 
+        
+    	Coordinate hubXB1Coordinate = ls.pointAlongOffset(1, -1 * railCraneGap);
+    	Coordinate hubXA1Coordinate = ls.pointAlongOffset(0, -1 * railCraneGap);
+    	Coord hubXB1Coord = new Coord(hubXB1Coordinate.x, hubXB1Coordinate.y);
+    	Coord hubXA1Coord = new Coord(hubXA1Coordinate.x, hubXA1Coordinate.y);
+    	
+		return new TerminalPlan(terminal, tInCoord, hubXA1Coord, hubXB1Coord, getNearestNode(hubXA1Coord), getNearestNode(hubXB1Coord));
+	}
+	
+	private void addTerminalAndConnectToRoadNetwork(TerminalPlan plan) {
+		
+		Terminal terminal = plan.terminal;
 		
         // create the terminal link: (t_IN)<#####>(t_OUT)
    
-		Node tIn = nf.createNode(Id.create(terminal.getName() + "_IN", Node.class), new Coord(terminal.getCoord().getX() - xCoordGapRailInOut , terminal.getCoord().getY()));
+		Node tIn = nf.createNode(Id.create(terminal.getName() + "_IN", Node.class), plan.tInCoord);
         Node tOut = nf.createNode(Id.create(terminal.getName() + "_OUT", Node.class), terminal.getCoord());
         network.addNode(tIn);
         network.addNode(tOut);
@@ -211,9 +309,17 @@ public class GenerateCargoSupply {
         
         // connect the terminal link to road network using a link queue as crane
         
+        List<Id<Link>> queueLinks = new ArrayList<>();
+        List<Id<Link>> stackLinks = new ArrayList<>();
+        stackLinks.add(terminalLink.getId());
+        
         for (String kvMode : terminal.getMode2terminalCapacity().keySet()) {
-            connectToRoadNetwork(terminal.getName(), terminalLink, terminal.getMode2terminalCapacity().get(kvMode), terminal.getMode2operatingTimes().get(kvMode).getFirst(), terminal.getMode2operatingTimes().get(kvMode).getSecond(), kvMode);
+            connectToRoadNetwork(plan, terminalLink, terminal.getMode2terminalCapacity().get(kvMode), terminal.getMode2operatingTimes().get(kvMode).getFirst(), terminal.getMode2operatingTimes().get(kvMode).getSecond(), kvMode, queueLinks, stackLinks);
         }
+        
+        // store the queue and stack links, the terminal queue handling in the simulation looks them up from here
+        stop.getAttributes().putAttribute(QUEUE_LINKS_ATTRIBUTE, joinLinkIds(queueLinks));
+        stop.getAttributes().putAttribute(STACK_LINKS_ATTRIBUTE, joinLinkIds(stackLinks));
                 
 	}
 	
@@ -243,30 +349,28 @@ public class GenerateCargoSupply {
 	 *		  *** rail and road
 	 *        
 	 * 
-	 * @param name
+	 * @param plan the precomputed crane link coordinates and nearest road network nodes
 	 * @param railHubLink
 	 * @param containersPerHour
 	 * @param from
 	 * @param to
 	 * @param carModeKV
+	 * @param queueLinks collects the truck-stack queue link (XA1->XB1)
+	 * @param stackLinks collects the stack link (XB1->XA)
 	 */
-	private void connectToRoadNetwork(String name, Link railHubLink, Double containersPerHour, double from, double to, String carModeKV) {
+	private void connectToRoadNetwork(TerminalPlan plan, Link railHubLink, Double containersPerHour, double from, double to, String carModeKV, List<Id<Link>> queueLinks, List<Id<Link>> stackLinks) {
 	
-		// crane link XA1->XB1
+		String name = plan.terminal.getName();
 		
-        LineSegment ls = new LineSegment(railHubLink.getFromNode().getCoord().getX(), railHubLink.getFromNode().getCoord().getY(), railHubLink.getToNode().getCoord().getX(), railHubLink.getToNode().getCoord().getY()); 
-        
-    	Coordinate hubXB1Coordinate = ls.pointAlongOffset(1, -1 * railCraneGap);
-    	Coordinate hubXA1Coordinate = ls.pointAlongOffset(0, -1 * railCraneGap);
-    	Coord hubXB1Coord = new Coord(hubXB1Coordinate.x, hubXB1Coordinate.y);
-    	Coord hubXA1Coord = new Coord(hubXA1Coordinate.x, hubXA1Coordinate.y);	
+		// crane link XA1->XB1
 
-    	Node xB1 = nf.createNode(Id.create(railHubLink.getToNode().getId().toString() + "1_" + carModeKV, Node.class), hubXB1Coord);
+    	Node xB1 = nf.createNode(Id.create(railHubLink.getToNode().getId().toString() + "1_" + carModeKV, Node.class), plan.xB1Coord);
     	network.addNode(xB1);
-    	Node xA1 = nf.createNode(Id.create(railHubLink.getFromNode().getId().toString() + "1_" + carModeKV, Node.class), hubXA1Coord);
+    	Node xA1 = nf.createNode(Id.create(railHubLink.getFromNode().getId().toString() + "1_" + carModeKV, Node.class), plan.xA1Coord);
     	network.addNode(xA1);
     	
     	Link craneLink = addLink(name, distanceEachTerminalLink, xA1, xB1, new HashSet<>(Arrays.asList(carModeKV)), containersPerHour, speedEachTerminalLink, numberOfLanesTerminalLink);
+    	queueLinks.add(craneLink.getId());
     	
     	for (int day = 0; day < simulatedDays; day++) {
     		
@@ -303,14 +407,15 @@ public class GenerateCargoSupply {
     	
     	// connect parallel links    	
     	addLink(name, distanceEachTerminalLink, railHubLink.getToNode(), xA1, new HashSet<>(Arrays.asList(carModeKV)), largeLinkCapacity, speedEachTerminalLink, numberOfLanesTerminalConnectionLinks);
-    	addLink(name, distanceEachTerminalLink, xB1, railHubLink.getFromNode(), new HashSet<>(Arrays.asList(carModeKV)), largeLinkCapacity, speedEachTerminalLink, numberOfLanesTerminalConnectionLinks);
+    	Link stackLink = addLink(name, distanceEachTerminalLink, xB1, railHubLink.getFromNode(), new HashSet<>(Arrays.asList(carModeKV)), largeLinkCapacity, speedEachTerminalLink, numberOfLanesTerminalConnectionLinks);
+    	stackLinks.add(stackLink.getId());
         
     	// connect to original car only road network
     	
-        Node nearestNodeXA2 = getNearestNode(carOnlyNetwork, xA1.getCoord()); 
+        Node nearestNodeXA2 = plan.nearestNodeXA2; 
         addLink(name, NetworkUtils.getEuclideanDistance(nearestNodeXA2.getCoord(), xA1.getCoord()), nearestNodeXA2, xA1, new HashSet<>(Arrays.asList(carModeKV)), largeLinkCapacity, 13.8889, numberOfLanesTerminalConnectionLinks);            
         
-        Node nearestNodeXB2 = getNearestNode(carOnlyNetwork, xB1.getCoord()); 
+        Node nearestNodeXB2 = plan.nearestNodeXB2; 
         addLink(name, NetworkUtils.getEuclideanDistance(xB1.getCoord(), nearestNodeXB2.getCoord()), xB1, nearestNodeXB2, new HashSet<>(Arrays.asList(carModeKV)), largeLinkCapacity, 13.8889, numberOfLanesTerminalConnectionLinks);            
 	}
 	
@@ -457,6 +562,15 @@ public class GenerateCargoSupply {
         		
 	}
 	
+	private static String joinLinkIds(List<Id<Link>> linkIds) {
+		StringBuilder sb = new StringBuilder();
+		for (Id<Link> linkId : linkIds) {
+			if (sb.length() > 0) sb.append(",");
+			sb.append(linkId.toString());
+		}
+		return sb.toString();
+	}
+	
 	private double getDistance(Map<String, Integer> relation2distance, RouteStopInfo previousStop, RouteStopInfo stop) {
 		if (relation2distance == null) {
 			return NetworkUtils.getEuclideanDistance(previousStop.getTransitStop().getCoord(), stop.getTransitStop().getCoord());
@@ -497,7 +611,25 @@ public class GenerateCargoSupply {
     
 	final double additionalSeconds = 60.;
 
+	/**
+	 * Adds the night ban for HGV (from 10 p.m. till 5 a.m.) to all car links, with one network change event per link and time point.
+	 */
 	public void addHGVnightRestriction() {
+		addHGVnightRestriction(false);
+	}
+
+	/**
+	 * Adds the night ban for HGV (from 10 p.m. till 5 a.m.) to all car links.
+	 * 
+	 * @param groupLinks if true, all links with the same change at the same time point share a single network change event, i.e. there is one
+	 * event per time point to close the links and one event per time point and distinct capacity / number of lanes to reopen the links
+	 */
+	public void addHGVnightRestriction(boolean groupLinks) {
+		if (groupLinks) {
+			addGroupedHGVnightRestriction();
+			return;
+		}
+		
 		for (Link link : scenario.getNetwork().getLinks().values()) {
     		if (link.getAllowedModes().contains("car")) {
 				
@@ -526,5 +658,72 @@ public class GenerateCargoSupply {
    			}
    		}
 	}
+	
+	private void addGroupedHGVnightRestriction() {
+		
+		// group the car links by the values which are restored in the morning
+		List<Link> carLinks = new ArrayList<>();
+		Map<CapacityAndLanes, List<Link>> capacityAndLanes2links = new LinkedHashMap<>();
+		for (Link link : scenario.getNetwork().getLinks().values()) {
+			if (link.getAllowedModes().contains("car")) {
+				carLinks.add(link);
+				capacityAndLanes2links.computeIfAbsent(new CapacityAndLanes(link), k -> new ArrayList<>()).add(link);
+			}
+		}
+		if (carLinks.isEmpty()) return;
+		
+		this.networkChangeEvents.add(createClosingEvent(0. + additionalSeconds, carLinks));
+		
+		for (int day = 0; day < simulatedDays; day++) {
+			
+			double restrictionEndTime = day * 24 * 3600. + 5 * 3600. + additionalSeconds;
+			for (List<Link> links : capacityAndLanes2links.values()) {
+				NetworkChangeEvent networkChangeEventEnd = new NetworkChangeEvent(restrictionEndTime);
+				networkChangeEventEnd.addLinks(links);
+				networkChangeEventEnd.setFlowCapacityChange(new ChangeValue(ChangeType.ABSOLUTE_IN_SI_UNITS, links.get(0).getFlowCapacityPerSec()));
+				networkChangeEventEnd.setLanesChange(new ChangeValue(ChangeType.ABSOLUTE_IN_SI_UNITS, links.get(0).getNumberOfLanes()));
+				this.networkChangeEvents.add(networkChangeEventEnd);
+			}
+			
+			double restrictionStartTime = day * 24 * 3600. + 22 * 3600. + additionalSeconds;
+			this.networkChangeEvents.add(createClosingEvent(restrictionStartTime, carLinks));
+		}
+		
+		log.info("Night ban of HGV: " + carLinks.size() + " car links, " + capacityAndLanes2links.size() + " distinct capacity / number of lanes combinations.");
+	}
+
+	/**
+	 * The flow capacity and the number of lanes of a link which are restored after the night ban.
+	 */
+	private static final class CapacityAndLanes {
+		private final double flowCapacityPerSec;
+		private final double numberOfLanes;
+		
+		private CapacityAndLanes(Link link) {
+			this.flowCapacityPerSec = link.getFlowCapacityPerSec();
+			this.numberOfLanes = link.getNumberOfLanes();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof CapacityAndLanes)) return false;
+			CapacityAndLanes other = (CapacityAndLanes) obj;
+			return Double.compare(this.flowCapacityPerSec, other.flowCapacityPerSec) == 0 && Double.compare(this.numberOfLanes, other.numberOfLanes) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * Double.hashCode(this.flowCapacityPerSec) + Double.hashCode(this.numberOfLanes);
+		}
+	}
+
+	private static NetworkChangeEvent createClosingEvent(double time, List<Link> links) {
+		NetworkChangeEvent networkChangeEvent = new NetworkChangeEvent(time);
+		networkChangeEvent.addLinks(links);
+		networkChangeEvent.setFlowCapacityChange(new ChangeValue(ChangeType.ABSOLUTE_IN_SI_UNITS, 0.));
+		networkChangeEvent.setLanesChange(new ChangeValue(ChangeType.ABSOLUTE_IN_SI_UNITS, 0));
+		return networkChangeEvent;
+	}
 
 }
@@ -0,0 +1,253 @@
+/**
+ *
+ */
+package ch.sbb.intermodalfreight.prepare.supply;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.network.NetworkChangeEvent;
+import org.matsim.core.network.NetworkChangeEvent.ChangeType;
+import org.matsim.core.network.NetworkChangeEvent.ChangeValue;
+
+/**
+ *
+ * Collects network change events and merges all events with the same time and the same changes into a single event for all affected links.
+ *
+ * Only events with absolute changes are merged. Events with relative changes (factor, offset) are kept as they are, because merging them
+ * may change how often a change is applied to a link.
+ * 
+ * Events with the same time are applied in the order in which they were added. An event is only merged into an earlier event with the same changes
+ * if no event in between changes any of its links, i.e. the last change of each link at a given time remains the last one.
+ *
+ * Optionally, links can be excluded, e.g. links which are removed from the network. The excluded links are pruned from each event
+ * and events without any remaining link are dropped.
+ *
+ * @author ikaddoura
+ *
+ */
+public final class NetworkChangeEventTimeline {
+
+	private final List<NetworkChangeEvent> events = new ArrayList<>();
+	private final Set<Id<Link>> excludedLinkIds = new HashSet<>();
+	private int addedEvents = 0;
+	private int droppedEvents = 0;
+	private int prunedLinks = 0;
+
+	/**
+	 * The change values of an event.
+	 */
+	private static final class ChangeKey {
+		private final ChangeValue flowCapacityChange;
+		private final ChangeValue freespeedChange;
+		private final ChangeValue lanesChange;
+
+		private ChangeKey(NetworkChangeEvent event) {
+			this.flowCapacityChange = event.getFlowCapacityChange();
+			this.freespeedChange = event.getFreespeedChange();
+			this.lanesChange = event.getLanesChange();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof ChangeKey)) return false;
+			ChangeKey other = (ChangeKey) obj;
+			return equals(this.flowCapacityChange, other.flowCapacityChange)
+					&& equals(this.freespeedChange, other.freespeedChange) && equals(this.lanesChange, other.lanesChange);
+		}
+
+		private static boolean equals(ChangeValue value, ChangeValue otherValue) {
+			if (value == null || otherValue == null) return value == otherValue;
+			return value.getType() == otherValue.getType() && Double.compare(value.getValue(), otherValue.getValue()) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(hash(this.flowCapacityChange), hash(this.freespeedChange), hash(this.lanesChange));
+		}
+
+		private static int hash(ChangeValue value) {
+			return value == null ? 0 : Objects.hash(value.getType(), value.getValue());
+		}
+	}
+
+	/**
+	 * Excludes the links from all events which are added afterwards.
+	 */
+	public NetworkChangeEventTimeline excludeLinks(Collection<Id<Link>> linkIds) {
+		this.excludedLinkIds.addAll(linkIds);
+		return this;
+	}
+
+	public NetworkChangeEventTimeline add(NetworkChangeEvent event) {
+		this.addedEvents++;
+
+		event = pruneExcludedLinks(event);
+		if (event == null) {
+			this.droppedEvents++;
+		} else {
+			this.events.add(event);
+		}
+		return this;
+	}
+
+	public NetworkChangeEventTimeline addAll(Collection<NetworkChangeEvent> events) {
+		for (NetworkChangeEvent event : events) {
+			add(event);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the event itself if it does not contain any excluded link, a copy without the excluded links or null if no link remains
+	 */
+	private NetworkChangeEvent pruneExcludedLinks(NetworkChangeEvent event) {
+		if (this.excludedLinkIds.isEmpty()) return event;
+
+		List<Link> remainingLinks = null;
+		for (Link link : event.getLinks()) {
+			if (this.excludedLinkIds.contains(link.getId())) {
+				if (remainingLinks == null) {
+					// first excluded link, copy the links so far
+					remainingLinks = new ArrayList<>();
+					for (Link previousLink : event.getLinks()) {
+						if (previousLink == link) break;
+						remainingLinks.add(previousLink);
+					}
+				}
+				this.prunedLinks++;
+			} else if (remainingLinks != null) {
+				remainingLinks.add(link);
+			}
+		}
+
+		if (remainingLinks == null) return event;
+		if (remainingLinks.isEmpty()) return null;
+
+		NetworkChangeEvent prunedEvent = new NetworkChangeEvent(event.getStartTime());
+		prunedEvent.setFlowCapacityChange(event.getFlowCapacityChange());
+		prunedEvent.setFreespeedChange(event.getFreespeedChange());
+		prunedEvent.setLanesChange(event.getLanesChange());
+		prunedEvent.addLinks(remainingLinks);
+		return prunedEvent;
+	}
+
+	private static boolean isAbsolute(NetworkChangeEvent event) {
+		return isAbsolute(event.getFlowCapacityChange()) && isAbsolute(event.getFreespeedChange()) && isAbsolute(event.getLanesChange());
+	}
+
+	private static boolean isAbsolute(ChangeValue value) {
+		return value == null || value.getType() == ChangeType.ABSOLUTE_IN_SI_UNITS;
+	}
+
+	/**
+	 * @return the number of events which were added to the timeline
+	 */
+	public int getNumberOfAddedEvents() {
+		return this.addedEvents;
+	}
+
+	/**
+	 * @return the number of events which were dropped because all their links are excluded
+	 */
+	public int getNumberOfDroppedEvents() {
+		return this.droppedEvents;
+	}
+
+	/**
+	 * @return the number of excluded links which were pruned from the events
+	 */
+	public int getNumberOfPrunedLinks() {
+		return this.prunedLinks;
+	}
+
+	/**
+	 * @return the merged events sorted by time, events with the same time keep the order in which they were added
+	 */
+	public List<NetworkChangeEvent> build() {
+		List<NetworkChangeEvent> sortedEvents = new ArrayList<>(this.events);
+		sortedEvents.sort(Comparator.comparingDouble(NetworkChangeEvent::getStartTime));
+		
+		// the position of the last event which changes a link, only valid if the link was changed in the current time step
+		int[] link2lastPosition = new int[Id.getNumberOfIds(Link.class)];
+		int[] link2timeStep = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(link2timeStep, -1);
+		
+		List<NetworkChangeEvent> mergedEvents = new ArrayList<>();
+		Map<ChangeKey, NetworkChangeEvent> key2mergedEvent = new HashMap<>();
+		Map<ChangeKey, Integer> key2position = new HashMap<>();
+		int timeStep = -1;
+		double time = Double.NaN;
+		
+		for (NetworkChangeEvent event : sortedEvents) {
+			if (Double.compare(event.getStartTime(), time) != 0) {
+				// next time step
+				time = event.getStartTime();
+				timeStep++;
+				key2mergedEvent.clear();
+				key2position.clear();
+			}
+			
+			if (!isAbsolute(event)) {
+				int position = mergedEvents.size();
+				mergedEvents.add(event);
+				for (Link link : event.getLinks()) {
+					link2lastPosition[link.getId().index()] = position;
+					link2timeStep[link.getId().index()] = timeStep;
+				}
+				continue;
+			}
+			
+			ChangeKey key = new ChangeKey(event);
+			NetworkChangeEvent mergedEvent = key2mergedEvent.get(key);
+			int position = mergedEvent == null ? -1 : key2position.get(key);
+			
+			// merge into the earlier event only if no event in between changes any of the links
+			if (mergedEvent != null) {
+				for (Link link : event.getLinks()) {
+					int linkIndex = link.getId().index();
+					if (link2timeStep[linkIndex] == timeStep && link2lastPosition[linkIndex] > position) {
+						mergedEvent = null;
+						break;
+					}
+				}
+			}
+			
+			if (mergedEvent == null) {
+				mergedEvent = new NetworkChangeEvent(event.getStartTime());
+				mergedEvent.setFlowCapacityChange(event.getFlowCapacityChange());
+				mergedEvent.setFreespeedChange(event.getFreespeedChange());
+				mergedEvent.setLanesChange(event.getLanesChange());
+				position = mergedEvents.size();
+				mergedEvents.add(mergedEvent);
+				key2mergedEvent.put(key, mergedEvent);
+				key2position.put(key, position);
+			}
+			
+			for (Link link : event.getLinks()) {
+				int linkIndex = link.getId().index();
+				if (link2timeStep[linkIndex] == timeStep && link2lastPosition[linkIndex] == position) {
+					// the link is already contained in the merged event
+					continue;
+				}
+				mergedEvent.addLink(link);
+				link2lastPosition[linkIndex] = position;
+				link2timeStep[linkIndex] = timeStep;
+			}
+		}
+		
+		return mergedEvents;
+	}
+
+}
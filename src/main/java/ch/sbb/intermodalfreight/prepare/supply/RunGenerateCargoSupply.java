@@ -103,9 +103,7 @@ public class RunGenerateCargoSupply {
 		
         // first read and add the terminals		
 		Map<String,Terminal> terminals = new TerminalsFileReader(inputTerminalsFile).getName2terminal();
-		for (Terminal terminal : terminals.values()) {
-			supply.addTerminalAndConnectToRoadNetwork(terminal);
-		}
+		supply.addTerminalsAndConnectToRoadNetwork(terminals.values());
 		
 		// then read the schedule xlsx and add the transit lines, routes and departures	
 		List<RouteInfo> routeInfos = new CargoScheduleReader(inputScheduleXLSX, sheetName, terminals, arrivalDepartureOffsetFirstStop).getRouteInfos();
@@ -128,7 +126,7 @@ public class RunGenerateCargoSupply {
 		// see if we have to adjust the network
 		if (project.getMatsimInput().getSupply().isNetworkNightHGVRestriction()) {
 			log.info("Creating network change events to account for the night ban of HGV.");
-			supply.addHGVnightRestriction();
+			supply.addHGVnightRestriction(project.getMatsimInput().getSupply().isNetworkNightHGVRestrictionGrouped());
 		}
 		
 		// Allow rail access/egress mode wherever the car mode is allowed.
@@ -164,22 +162,12 @@ public class RunGenerateCargoSupply {
 		 }
 		
 		// make sure we don't have any network change events affecting the links we removed from the network
-		List<NetworkChangeEvent> changeEventsToRemove = new ArrayList<>();
-		for (NetworkChangeEvent nce : changeEvents) {
-			for (Link linkInNCE : nce.getLinks()) {
-				for (Id<Link> linkIdToRemove : linksToRemoveFromOriginalCarNetwork) {
-					if (linkInNCE.getId().toString().equals(linkIdToRemove.toString())) {
-						changeEventsToRemove.add(nce);
-					}
-		        }
-			}
-		}
-		
-		log.info("Number of change events to remove: " + changeEventsToRemove.size());
-		for (NetworkChangeEvent nceToRemove : changeEventsToRemove) {
-			changeEvents.remove(nceToRemove);
-		}
-		log.info("New total number of network change events: " + changeEvents.size());
+		// and merge the events with the same time and changes, e.g. the terminal closing times which are shared by many terminals
+		NetworkChangeEventTimeline timeline = new NetworkChangeEventTimeline().excludeLinks(linksToRemoveFromOriginalCarNetwork).addAll(changeEvents);
+		changeEvents = timeline.build();
+		log.info("Number of removed links pruned from the network change events: " + timeline.getNumberOfPrunedLinks() 
+				+ ", number of network change events without any remaining link: " + timeline.getNumberOfDroppedEvents());
+		log.info("Number of network change events after merging the events with the same time and changes: " + changeEvents.size());
 				
 		new NetworkChangeEventsWriter().write(outputDir + "cargoNetworkChangeEvents.xml.gz", changeEvents);		
 		new NetworkWriter(scenario.getNetwork()).write(outputDir + "cargoNetwork.xml.gz");
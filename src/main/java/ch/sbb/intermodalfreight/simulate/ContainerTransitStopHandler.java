@@ -19,10 +19,9 @@
 
 package ch.sbb.intermodalfreight.simulate;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
-import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.mobsim.qsim.interfaces.MobsimVehicle;
 import org.matsim.core.mobsim.qsim.pt.PTPassengerAgent;
@@ -33,11 +32,20 @@ import org.matsim.vehicles.Vehicle;
 import org.matsim.vehicles.VehicleType;
 import org.matsim.vehicles.VehicleUtils;
 
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.ContainerTransferApproach;
 import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.TerminalCapacityApproach;
 
 /**
  * A slightly modified version of the default which uses the access and egress times from the terminal attributes instead of from the vehicle type.
  * 
+ * In the batched mode, the containers are moved at the same times as in the serial mode, but the handler skips the seconds
+ * in which the crane is still busy with the previous container (up to the batch horizon), instead of being called every second.
+ * 
+ * In the parallel door operation mode, the cranes of the terminal (stop attribute 'craneCount', default: 1) work at the same time.
+ * Each crane has its own busy time, a free crane takes the next leaving container and another free crane the next entering container,
+ * i.e. egress and access are processed concurrently if there are several cranes. Each container requires the full access or egress time of one crane.
+ * The number of cranes is only considered in the parallel door operation mode; in the serial mode (and the batched mode) the containers are moved one after the other.
+ * 
  * @author ikaddoura based on the default version by aneumann
  * 
  */
@@ -46,19 +54,50 @@ public class ContainerTransitStopHandler implements TransitStopHandler {
 	private boolean doorsOpen = false;
 	private double passengersLeavingTimeFraction = 0.0;
 	private double passengersEnteringTimeFraction = 0.0;
+	// the busy time of each crane in the parallel door operation mode
+	private double[] craneBusyTimeFractions = new double[0];
 	
 	private final VehicleType.DoorOperationMode doorOperationMode;
 	
 	private static final double openDoorsDuration = 1.0;
 	private static final double closeDoorsDuration = 1.0;
 	
-	private TerminalQueueDeactivationEventHandler queueEventHandler;
-	private IntermodalFreightConfigGroup ifCfg;
+	private final TerminalQueueDeactivationEventHandler queueEventHandler;
+	private final ContainerTransitStopTimes stopTimes;
+	private final boolean withCapacityReduction;
+	private final boolean batched;
+	private final double batchHorizon;
+	
+	// the container times of the current stop in the batched mode, only re-computed if the allocation of the crane has changed
+	private int craneResourceVersion = -1;
+	private double batchPersonEntersTime;
+	private double batchPersonLeavesTime;
 	
-	ContainerTransitStopHandler(Vehicle vehicle, TerminalQueueDeactivationEventHandler queueEventHandler, Scenario scenario) {
+	ContainerTransitStopHandler(Vehicle vehicle, TerminalQueueDeactivationEventHandler queueEventHandler, Scenario scenario, ContainerTransitStopTimes stopTimes) {
 		this.doorOperationMode = VehicleUtils.getDoorOperationMode(vehicle.getType());
 		this.queueEventHandler = queueEventHandler;
-		this.ifCfg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		this.stopTimes = stopTimes;
+		
+		IntermodalFreightConfigGroup ifCfg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		if (ifCfg.getTerminalCapacityApproach() == TerminalCapacityApproach.WithCapacityReduction) {
+			this.withCapacityReduction = true;
+		} else if (ifCfg.getTerminalCapacityApproach() == TerminalCapacityApproach.WithoutCapacityReduction) {
+			this.withCapacityReduction = false;
+		} else {
+			throw new RuntimeException("Unknown terminal capacity approach. Aborting...");
+		}
+		
+		if (ifCfg.getContainerTransferApproach() == ContainerTransferApproach.Serial) {
+			this.batched = false;
+		} else if (ifCfg.getContainerTransferApproach() == ContainerTransferApproach.Batched) {
+			this.batched = true;
+		} else {
+			throw new RuntimeException("Unknown container transfer approach. Aborting...");
+		}
+		this.batchHorizon = ifCfg.getContainerTransferBatchHorizon();
+		if (this.batched && this.batchHorizon < 1.) {
+			throw new RuntimeException("The container transfer batch horizon must be at least 1 second. Aborting...");
+		}
 	}
 
 	@Override
@@ -66,46 +105,205 @@ public class ContainerTransitStopHandler implements TransitStopHandler {
 			List<PTPassengerAgent> enteringPassengers, PassengerAccessEgress handler, MobsimVehicle vehicle) {
 		
 		if(this.doorOperationMode == VehicleType.DoorOperationMode.parallel){
-			throw new RuntimeException("Not supported. Set door operation mode to 'parallel.");
+			return handleParallelStop(stop, now, leavingPassengers, enteringPassengers, handler, vehicle);
 			
 		} else if (this.doorOperationMode == VehicleType.DoorOperationMode.serial){
+			if (this.batched) {
+				return handleBatchedSerialStop(stop, now, leavingPassengers, enteringPassengers, handler, vehicle);
+			}
 			return handleSerialStop(stop, now, leavingPassengers, enteringPassengers, handler, vehicle);
 			
 		} else {
-			throw new RuntimeException("Not supported. Set door operation mode to 'parallel.");
+			throw new RuntimeException("Unknown door operation mode: " + this.doorOperationMode + ". Aborting...");
 		}		
 	}
 	
-	private double handleSerialStop(TransitStopFacility stop, double now, List<PTPassengerAgent> leavingPassengers, 
+	private double getAccessEgressTimeFactor(TransitStopFacility stop) {
+		if (this.withCapacityReduction) {
+			// the crane is shared between all trains at the terminal (and the trucks if served in parallel)
+			return getCraneResource(stop).getContainerTimeFactor();
+		}
+		return 1.;
+	}
+	
+	private TerminalCraneResource getCraneResource(TransitStopFacility stop) {
+		TerminalCraneResource craneResource = this.queueEventHandler.getCraneResource(stop.getId());
+		if (craneResource == null) throw new RuntimeException("Unknown terminal " + stop.getId() + ". Aborting...");
+		return craneResource;
+	}
+	
+	private double handleParallelStop(TransitStopFacility stop, double now, List<PTPassengerAgent> leavingPassengers, 
 			List<PTPassengerAgent> enteringPassengers, PassengerAccessEgress handler, MobsimVehicle vehicle) {
 		
-		double personEntersTime;
-		double personLeavesTime;
-		if (stop.getAttributes().getAttribute("accessTime") == null ||
-				stop.getAttributes().getAttribute("egressTime") == null) {					
-					throw new RuntimeException("There are no access/egress times provided in the transit stop facility attributes. "
-							+ "Please add these parameters to the transit stop facility attributes in the schedule, "
-							+ "e.g., 'accessTime = 1.0' and 'egressTime = 1.0'. Aborting...");
+		double accessEgressTimeFactor = getAccessEgressTimeFactor(stop);
+		double personEntersTime = this.stopTimes.getAccessTime(stop.getId()) * accessEgressTimeFactor;
+		double personLeavesTime = this.stopTimes.getEgressTime(stop.getId()) * accessEgressTimeFactor;
 		
-		} else {
-						
-			double accessEgreesTimeFactor = 1.;
+		if (!this.doorsOpen) {
+			if (leavingPassengers.size() > 0 || enteringPassengers.size() > 0) {
+				// case doors are shut, but passengers want to leave or enter the veh
+				this.doorsOpen = true;
+				int craneCount = this.stopTimes.getCraneCount(stop.getId());
+				if (this.craneBusyTimeFractions.length != craneCount) {
+					this.craneBusyTimeFractions = new double[craneCount];
+				}
+				Arrays.fill(this.craneBusyTimeFractions, 0.0);
+				return openDoorsDuration;
+			} else {
+				// case nobody wants to leave or enter the veh
+				return 0.0;
+			}
+		}
+		
+		if (leavingPassengers.size() > 0 || enteringPassengers.size() > 0) {
+			// somebody wants to leave or enter the veh; each free crane takes the next leaving or entering container
 			
-			if (ifCfg.getTerminalCapacityApproach() == TerminalCapacityApproach.WithCapacityReduction) {
-				Set<Id<Vehicle>> trainsAtTerminal = queueEventHandler.getTerminal2trains().get(stop.getId());	
-				if (trainsAtTerminal != null && trainsAtTerminal.size() > 0) {
-					accessEgreesTimeFactor = trainsAtTerminal.size();
+			boolean leavingBlocked = false;
+			boolean enteringBlocked = false;
+			while (true) {
+				boolean moved = false;
+				
+				if (leavingPassengers.size() > 0 && !leavingBlocked) {
+					int crane = getFreeCrane();
+					if (crane < 0) break;
+					if (handler.handlePassengerLeaving(leavingPassengers.get(0), vehicle, stop.getLinkId(), now)) {
+						leavingPassengers.remove(0);
+						this.craneBusyTimeFractions[crane] += personLeavesTime;
+						moved = true;
+					} else {
+						leavingBlocked = true;
+					}
 				}
-			} else if (ifCfg.getTerminalCapacityApproach() == TerminalCapacityApproach.WithoutCapacityReduction) {
-				// nothing to do
 				
-			} else {
-				throw new RuntimeException("Unknown terminal capacity approach. Aborting...");
+				if (enteringPassengers.size() > 0 && !enteringBlocked) {
+					int crane = getFreeCrane();
+					if (crane < 0) break;
+					if (handler.handlePassengerEntering(enteringPassengers.get(0), vehicle, stop.getId(), now)) {
+						enteringPassengers.remove(0);
+						this.craneBusyTimeFractions[crane] += personEntersTime;
+						moved = true;
+					} else {
+						enteringBlocked = true;
+					}
+				}
+				
+				if (!moved) break;
 			}
 			
-			personEntersTime = (double) stop.getAttributes().getAttribute("accessTime") * accessEgreesTimeFactor;
-			personLeavesTime = (double) stop.getAttributes().getAttribute("egressTime") * accessEgreesTimeFactor;
+			passOneSecond();
+			return 1.0;
+			
+		} else {
+			// nobody left to handle
+			
+			if (allCranesFree()) {
+				// every passenger entered or left the veh so close and leave
+				this.doorsOpen = false;
+				Arrays.fill(this.craneBusyTimeFractions, 0.0);
+				return closeDoorsDuration;
+			}
+			
+			// the cranes are still busy with the last containers so wait again
+			passOneSecond();
+			return 1.0;
+		}
+	}
+	
+	/**
+	 * @return the crane with the lowest busy time if it can take another container within the current second, otherwise -1
+	 */
+	private int getFreeCrane() {
+		int freeCrane = -1;
+		for (int crane = 0; crane < this.craneBusyTimeFractions.length; crane++) {
+			if (this.craneBusyTimeFractions[crane] < 1.0 && (freeCrane < 0 || this.craneBusyTimeFractions[crane] < this.craneBusyTimeFractions[freeCrane])) {
+				freeCrane = crane;
+			}
 		}
+		return freeCrane;
+	}
+	
+	private boolean allCranesFree() {
+		for (double craneBusyTimeFraction : this.craneBusyTimeFractions) {
+			if (craneBusyTimeFraction >= 1.0) return false;
+		}
+		return true;
+	}
+	
+	private void passOneSecond() {
+		for (int crane = 0; crane < this.craneBusyTimeFractions.length; crane++) {
+			this.craneBusyTimeFractions[crane] = Math.max(0., this.craneBusyTimeFractions[crane] - 1.0);
+		}
+	}
+	
+	/**
+	 * Moves the containers exactly as the serial mode, i.e. at the same times and in the same order. If the crane is still busy with the previous container,
+	 * the serial mode would only wait for the next seconds. These seconds are skipped, at most the batch horizon per call.
+	 * The container times are only re-computed if the allocation of the crane has changed, e.g. if a train has arrived at or departed from the terminal.
+	 * As in the serial mode, the new container times apply to the containers which are moved afterwards.
+	 */
+	private double handleBatchedSerialStop(TransitStopFacility stop, double now, List<PTPassengerAgent> leavingPassengers, 
+			List<PTPassengerAgent> enteringPassengers, PassengerAccessEgress handler, MobsimVehicle vehicle) {
+		
+		int currentCraneResourceVersion = getCraneResource(stop).getVersion();
+		if (currentCraneResourceVersion != this.craneResourceVersion) {
+			double accessEgressTimeFactor = getAccessEgressTimeFactor(stop);
+			this.batchPersonEntersTime = this.stopTimes.getAccessTime(stop.getId()) * accessEgressTimeFactor;
+			this.batchPersonLeavesTime = this.stopTimes.getEgressTime(stop.getId()) * accessEgressTimeFactor;
+			this.craneResourceVersion = currentCraneResourceVersion;
+		}
+		
+		double stopTime = handleSerialStop(stop, now, leavingPassengers, enteringPassengers, handler, vehicle, this.batchPersonEntersTime, this.batchPersonLeavesTime);
+		
+		if (!this.doorsOpen) {
+			// the doors are closed, the next stop starts with the current allocation of the crane
+			this.craneResourceVersion = -1;
+			return stopTime;
+		}
+		if (stopTime != 1.0) return stopTime;
+		
+		// The serial mode would be called again in the next second. Count the following seconds in which it would only wait for the crane.
+		// A leaving container is moved as soon as the leaving time fraction is below 1. An entering container (which may also arrive later)
+		// is moved as soon as the entering time fraction is below 1, once all leaving containers have left the train.
+		int maxSkippedSeconds = (int) Math.floor(this.batchHorizon) - 1;
+		int skippedSeconds;
+		if (leavingPassengers.size() > 0) {
+			skippedSeconds = Math.min(maxSkippedSeconds, getWaitingSeconds(this.passengersLeavingTimeFraction));
+			this.passengersLeavingTimeFraction -= skippedSeconds;
+			
+		} else if (enteringPassengers.size() > 0) {
+			skippedSeconds = Math.min(maxSkippedSeconds, getWaitingSeconds(this.passengersEnteringTimeFraction));
+			this.passengersEnteringTimeFraction -= skippedSeconds;
+			this.passengersLeavingTimeFraction = Math.max(0, this.passengersLeavingTimeFraction - skippedSeconds);
+			
+		} else {
+			// waiting for the crane before closing the doors, the leaving time fraction is only reduced while it is at least 1
+			skippedSeconds = Math.min(maxSkippedSeconds, getWaitingSeconds(this.passengersEnteringTimeFraction));
+			this.passengersEnteringTimeFraction -= skippedSeconds;
+			this.passengersLeavingTimeFraction -= Math.min(skippedSeconds, getWaitingSeconds(this.passengersLeavingTimeFraction));
+		}
+		return stopTime + skippedSeconds;
+	}
+	
+	/**
+	 * @return the number of consecutive seconds in which the time fraction is still at least 1, i.e. reduced by 1 in each second
+	 */
+	private static int getWaitingSeconds(double timeFraction) {
+		return timeFraction >= 1.0 ? (int) Math.floor(timeFraction) : 0;
+	}
+	
+	private double handleSerialStop(TransitStopFacility stop, double now, List<PTPassengerAgent> leavingPassengers, 
+			List<PTPassengerAgent> enteringPassengers, PassengerAccessEgress handler, MobsimVehicle vehicle) {
+		
+		double accessEgreesTimeFactor = getAccessEgressTimeFactor(stop);
+		
+		double personEntersTime = this.stopTimes.getAccessTime(stop.getId()) * accessEgreesTimeFactor;
+		double personLeavesTime = this.stopTimes.getEgressTime(stop.getId()) * accessEgreesTimeFactor;
+		
+		return handleSerialStop(stop, now, leavingPassengers, enteringPassengers, handler, vehicle, personEntersTime, personLeavesTime);
+	}
+	
+	private double handleSerialStop(TransitStopFacility stop, double now, List<PTPassengerAgent> leavingPassengers, 
+			List<PTPassengerAgent> enteringPassengers, PassengerAccessEgress handler, MobsimVehicle vehicle, double personEntersTime, double personLeavesTime) {
 		
 		double stopTime = 0.0;
 
@@ -33,10 +33,16 @@ public class ContainerTransitStopHandlerFactory implements TransitStopHandlerFac
 	
 	@Inject
 	private Scenario scenario;
+	
+	// the factory is created once per mobsim
+	private ContainerTransitStopTimes stopTimes;
 
 	@Override
 	public TransitStopHandler createTransitStopHandler(Vehicle vehicle) {
-		return new ContainerTransitStopHandler(vehicle, queueEventHandler, scenario);
+		if (this.stopTimes == null) {
+			this.stopTimes = new ContainerTransitStopTimes(scenario.getTransitSchedule());
+		}
+		return new ContainerTransitStopHandler(vehicle, queueEventHandler, scenario, stopTimes);
 	}
 
 }
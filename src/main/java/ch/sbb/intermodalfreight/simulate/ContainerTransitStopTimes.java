@@ -0,0 +1,86 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import java.util.Arrays;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+/**
+ * 
+ * The access and egress times per container and the number of cranes from the transit stop facility attributes, stored in arrays which are addressed by the stop index.
+ * The number of cranes is optional and only considered in the parallel door operation mode.
+ * Immutable, should be created once per mobsim.
+ * 
+ * @author ikaddoura
+ *
+ */
+final class ContainerTransitStopTimes {
+	
+	static final String ACCESS_TIME_ATTRIBUTE = "accessTime";
+	static final String EGRESS_TIME_ATTRIBUTE = "egressTime";
+	static final String CRANE_COUNT_ATTRIBUTE = "craneCount";
+	
+	private final double[] stop2accessTime;
+	private final double[] stop2egressTime;
+	private final int[] stop2craneCount;
+	
+	ContainerTransitStopTimes(TransitSchedule schedule) {
+		this.stop2accessTime = new double[Id.getNumberOfIds(TransitStopFacility.class)];
+		this.stop2egressTime = new double[Id.getNumberOfIds(TransitStopFacility.class)];
+		this.stop2craneCount = new int[Id.getNumberOfIds(TransitStopFacility.class)];
+		
+		// stops without access and egress times are marked with NaN, the exception is thrown once a train stops there
+		Arrays.fill(this.stop2accessTime, Double.NaN);
+		Arrays.fill(this.stop2egressTime, Double.NaN);
+		Arrays.fill(this.stop2craneCount, 1);
+		
+		for (TransitStopFacility stop : schedule.getFacilities().values()) {
+			Object accessTime = stop.getAttributes().getAttribute(ACCESS_TIME_ATTRIBUTE);
+			Object egressTime = stop.getAttributes().getAttribute(EGRESS_TIME_ATTRIBUTE);
+			if (accessTime != null && egressTime != null) {
+				this.stop2accessTime[stop.getId().index()] = (double) accessTime;
+				this.stop2egressTime[stop.getId().index()] = (double) egressTime;
+			}
+			
+			Object craneCount = stop.getAttributes().getAttribute(CRANE_COUNT_ATTRIBUTE);
+			if (craneCount != null) {
+				int cranes = ((Number) craneCount).intValue();
+				if (cranes < 1) throw new RuntimeException("Terminal " + stop.getId() + " has " + cranes + " cranes. Expecting at least one crane. Aborting...");
+				this.stop2craneCount[stop.getId().index()] = cranes;
+			}
+		}
+	}
+	
+	/**
+	 * @return the time in seconds for one container to enter the train at the given stop
+	 */
+	double getAccessTime(Id<TransitStopFacility> stopId) {
+		checkTimes(stopId);
+		return this.stop2accessTime[stopId.index()];
+	}
+	
+	/**
+	 * @return the time in seconds for one container to leave the train at the given stop
+	 */
+	double getEgressTime(Id<TransitStopFacility> stopId) {
+		checkTimes(stopId);
+		return this.stop2egressTime[stopId.index()];
+	}
+	
+	/**
+	 * @return the number of cranes at the given stop, 1 if not provided in the stop attributes
+	 */
+	int getCraneCount(Id<TransitStopFacility> stopId) {
+		return stopId.index() < this.stop2craneCount.length ? this.stop2craneCount[stopId.index()] : 1;
+	}
+	
+	private void checkTimes(Id<TransitStopFacility> stopId) {
+		if (stopId.index() >= this.stop2accessTime.length || Double.isNaN(this.stop2accessTime[stopId.index()])) {
+			throw new RuntimeException("There are no access/egress times provided in the transit stop facility attributes. "
+					+ "Please add these parameters to the transit stop facility attributes in the schedule, "
+					+ "e.g., 'accessTime = 1.0' and 'egressTime = 1.0'. Aborting...");
+		}
+	}
+
+}
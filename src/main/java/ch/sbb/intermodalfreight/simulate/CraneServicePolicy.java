@@ -0,0 +1,34 @@
+package ch.sbb.intermodalfreight.simulate;
+
+/**
+ * 
+ * Decides whether the crane of a terminal serves the truck-stack queue or the train-stack queue.
+ * The truck-stack queue is activated or deactivated accordingly by the {@link TerminalQueueDeactivationEventHandler}.
+ * 
+ * A policy is only evaluated if the pending work at the terminal has changed or if the next decision time returned by the policy is reached.
+ * Implementations should therefore be stateless and run in constant time.
+ * 
+ * @author ikaddoura
+ *
+ */
+public interface CraneServicePolicy {
+	
+	/**
+	 * @param trainWorkPending true if there are containers waiting to be loaded or unloaded between the stack and a train at the terminal
+	 * @param queueActive the current status of the truck-stack queue
+	 * @param queueStatusSince the time at which the current status of the truck-stack queue was set
+	 * @param now the current simulation time
+	 * @return true if the truck-stack queue should be active, false if the crane should serve the trains
+	 */
+	boolean isQueueActive(boolean trainWorkPending, boolean queueActive, double queueStatusSince, double now);
+	
+	/**
+	 * @param trainWorkPending true if there are containers waiting to be loaded or unloaded between the stack and a train at the terminal
+	 * @param queueActive the current status of the truck-stack queue
+	 * @param queueStatusSince the time at which the current status of the truck-stack queue was set
+	 * @return the time at which the policy needs to be evaluated again even if the pending work does not change, 
+	 * Double.POSITIVE_INFINITY if there is no such time
+	 */
+	double getNextDecisionTime(boolean trainWorkPending, boolean queueActive, double queueStatusSince);
+
+}
@@ -35,18 +35,27 @@ public class FreightActivityScoring implements org.matsim.core.scoring.SumScorin
 		
 	private final ScoringParameters params;
 	private final IntermodalFreightConfigGroup ifCfg;
-	private final Double desiredArrival;
-	private final Double desiredDeparture;
+	private final double desiredArrival;
+	private final double desiredDeparture;
 	private final double tolerance;
 	
 	private double score = 0.;
 
 	public FreightActivityScoring(Person person, ScoringParameters parameters, IntermodalFreightConfigGroup ifCfg) {
+		this(parameters, ifCfg, getDesiredArrival(person), getDesiredDeparture(person), getTolerance(person, ifCfg));
+	}
+	
+	/**
+	 * @param desiredArrival the desired arrival time, NaN if there is no desired arrival time
+	 * @param desiredDeparture the desired departure time, NaN if there is no desired departure time
+	 * @param tolerance the departure and arrival time tolerance
+	 */
+	public FreightActivityScoring(ScoringParameters parameters, IntermodalFreightConfigGroup ifCfg, double desiredArrival, double desiredDeparture, double tolerance) {
 		this.params = parameters;
 		this.ifCfg = ifCfg;	
-		this.desiredArrival = (Double) person.getAttributes().getAttribute(INITIAL_ARRIVAL_TIME);
-		this.desiredDeparture = (Double) person.getAttributes().getAttribute(INITIAL_DEPARTURE_TIME);
-		this.tolerance = getTolerance(person);
+		this.desiredArrival = desiredArrival;
+		this.desiredDeparture = desiredDeparture;
+		this.tolerance = tolerance;
 	}
 
 	@Override
@@ -95,7 +104,7 @@ public class FreightActivityScoring implements org.matsim.core.scoring.SumScorin
 		if (actParams.isScoreAtAll()) {
 			
 			// destination activity
-			if (desiredArrival != null) {
+			if (!Double.isNaN(desiredArrival)) {
 				double lateArrival = arrival - desiredArrival;
 				if (lateArrival > tolerance) {
 					// arriving later --> penalty
@@ -124,7 +133,7 @@ public class FreightActivityScoring implements org.matsim.core.scoring.SumScorin
 		if (actParams.isScoreAtAll()) {
 			
 			// origin activity
-			if (desiredDeparture != null) {
+			if (!Double.isNaN(desiredDeparture)) {
 				double earlierDeparture = desiredDeparture - departure;		
 				if (earlierDeparture > tolerance) {
 					// departing earlier --> penalty
@@ -142,7 +151,23 @@ public class FreightActivityScoring implements org.matsim.core.scoring.SumScorin
 		return scoreTmp;
 	}
 
-	private double getTolerance(Person person) {
+	/**
+	 * @return the desired arrival time from the person attributes, NaN if there is no such attribute
+	 */
+	static double getDesiredArrival(Person person) {
+		Double desiredArrival = (Double) person.getAttributes().getAttribute(INITIAL_ARRIVAL_TIME);
+		return desiredArrival == null ? Double.NaN : desiredArrival;
+	}
+	
+	/**
+	 * @return the desired departure time from the person attributes, NaN if there is no such attribute
+	 */
+	static double getDesiredDeparture(Person person) {
+		Double desiredDeparture = (Double) person.getAttributes().getAttribute(INITIAL_DEPARTURE_TIME);
+		return desiredDeparture == null ? Double.NaN : desiredDeparture;
+	}
+
+	static double getTolerance(Person person, IntermodalFreightConfigGroup ifCfg) {
 		
 		// base value
 		double tolerance = ifCfg.getTolerance();
@@ -1,7 +1,6 @@
 package ch.sbb.intermodalfreight.simulate;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
@@ -24,28 +23,41 @@ import com.google.inject.Inject;
  * This works as an (additional) agent stuck penalty if the agent does not arrive at the trip destination.
  * Depending on the scoring parameters, the default stuck penalty may be too low.
  * 
- * - when an agent which uses the car mode is traveling at night (the night is hard-coded from 10 p.m. till 5 a.m.)
+ * - when an agent which uses the car mode is traveling at night (by default from 10 p.m. till 5 a.m., see {@link NightTimeWindows})
+ * 
+ * See {@link FreightPenaltyScoring} for applying the same penalties inside the scoring function without any person score events.
  * 
  * @author ikaddoura
  *
  */
 public class FreightPenaltyHandler implements PersonDepartureEventHandler, PersonArrivalEventHandler{
 
+	/**
+	 * The kind of the person score event for car legs during the night. Kept as it is for existing event analyses,
+	 * i.e. it is also used if other night time windows than 22:00 - 05:00 are configured.
+	 */
+	public static final String CAR_NIGHT_PENALTY = "car_night_22-5_penalty";
+
 	@Inject
 	private EventsManager eventsManager;
 	
 	private final IntermodalFreightConfigGroup ifCfg;
+	private final NightTimeWindows nightTimeWindows;
 	
-	private Map<Id<Person>, Double> person2departureTime = new HashMap<>();
+	// the car departure times addressed by the person index, NaN if the person has not yet departed by car
+	private double[] person2departureTime;
 	
 
 	@Override
 	public void reset(int iteration) {
-		this.person2departureTime.clear();
+		Arrays.fill(this.person2departureTime, Double.NaN);
 	}
 
 	public FreightPenaltyHandler(Scenario scenario) {
 		this.ifCfg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		this.nightTimeWindows = new NightTimeWindows(this.ifCfg);
+		this.person2departureTime = new double[Math.max(scenario.getPopulation().getPersons().size(), Id.getNumberOfIds(Person.class))];
+		Arrays.fill(this.person2departureTime, Double.NaN);
 	}
 
 	@Override
@@ -53,40 +65,23 @@ public class FreightPenaltyHandler implements PersonDepartureEventHandler, Perso
 		
 		eventsManager.processEvent(new PersonScoreEvent(event.getTime(), event.getPersonId(), ifCfg.getArrivalUtility(), "arrival_utility"));
 		
-		if (this.person2departureTime.get(event.getPersonId()) != null) {
-			double departureTime = this.person2departureTime.get(event.getPersonId());
+		int personIndex = event.getPersonId().index();
+		if (personIndex < this.person2departureTime.length && !Double.isNaN(this.person2departureTime[personIndex])) {
+			double departureTime = this.person2departureTime[personIndex];
 			double arrivalTime = event.getTime();
 			
-			if (legWasDuringNight(departureTime, arrivalTime)) {
-				eventsManager.processEvent(new PersonScoreEvent(event.getTime(), event.getPersonId(), ifCfg.getCarPenaltyNight(), "car_night_22-5_penalty"));
+			if (this.nightTimeWindows.isDuringNight(departureTime, arrivalTime)) {
+				eventsManager.processEvent(new PersonScoreEvent(event.getTime(), event.getPersonId(), ifCfg.getCarPenaltyNight(), CAR_NIGHT_PENALTY));
 			}
 			
 		}
 	}
 
+	/**
+	 * @return true if the leg was (partly) during the default night from 10 p.m. till 5 a.m.
+	 */
 	public static boolean legWasDuringNight(double departureTime, double arrivalTime) {
-		int departureDay = (int) (departureTime / (24. * 3600));
-		int arrivalDay = (int) (arrivalTime / (24. * 3600.));
-				
-		if (departureDay != arrivalDay) {
-			return true;
-			
-		} else {
-			// departure and arrival on same day
-			// now check if the departure or arrival time is in the early morning or late evening
-			
-			double depTimeOfDay = departureTime - departureDay * 24 * 3600.;
-			double arrivalTimeOfDay = arrivalTime - arrivalDay * 24 * 3600.;
-			
-			if (depTimeOfDay < 5 * 3600. || depTimeOfDay > 22 * 3600. ||
-					arrivalTimeOfDay < 5 * 3600. || arrivalTimeOfDay > 22 * 3600.) {
-				return true;
-				
-			} else {
-				return false;
-			}
-			
-		}
+		return NightTimeWindows.DEFAULT.isDuringNight(departureTime, arrivalTime);
 	}
 
 	@Override
@@ -94,8 +89,15 @@ public class FreightPenaltyHandler implements PersonDepartureEventHandler, Perso
 		
 		eventsManager.processEvent(new PersonScoreEvent(event.getTime(), event.getPersonId(), ifCfg.getDepartureUtility(), "departure_utility"));
 		
-		if (event.getLegMode().equals(TransportMode.car)) {
-			this.person2departureTime.put(event.getPersonId(), event.getTime());
+		if (TransportMode.car.equals(event.getLegMode())) {
+			int personIndex = event.getPersonId().index();
+			if (personIndex >= this.person2departureTime.length) {
+				// a person which was created after the handler
+				int oldLength = this.person2departureTime.length;
+				this.person2departureTime = Arrays.copyOf(this.person2departureTime, Math.max(personIndex + 1, oldLength + oldLength / 2));
+				Arrays.fill(this.person2departureTime, oldLength, this.person2departureTime.length, Double.NaN);
+			}
+			this.person2departureTime[personIndex] = event.getTime();
 		}
 	}
 
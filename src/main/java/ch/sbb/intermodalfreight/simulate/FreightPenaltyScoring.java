@@ -0,0 +1,62 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.core.scoring.SumScoringFunction;
+
+/**
+ *
+ * Applies the same penalties as the {@link FreightPenaltyHandler} directly inside the scoring function of a single agent,
+ * i.e. without throwing any person score events:
+ *
+ * - when an agent departs (a penalty, e.g. -1000)
+ * - when an agent arrives (a compensation of the previous penalty, e.g. +1000)
+ * - when an agent which uses the car mode is traveling at night
+ *
+ * @author ikaddoura
+ *
+ */
+public class FreightPenaltyScoring implements SumScoringFunction.ArbitraryEventScoring {
+
+	private final IntermodalFreightConfigGroup ifCfg;
+	private final NightTimeWindows nightTimeWindows;
+
+	private double carDepartureTime = Double.NaN;
+	private double score = 0.;
+
+	public FreightPenaltyScoring(IntermodalFreightConfigGroup ifCfg, NightTimeWindows nightTimeWindows) {
+		this.ifCfg = ifCfg;
+		this.nightTimeWindows = nightTimeWindows;
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		if (event instanceof PersonDepartureEvent) {
+			this.score += ifCfg.getDepartureUtility();
+
+			if (((PersonDepartureEvent) event).getLegMode().equals(TransportMode.car)) {
+				this.carDepartureTime = event.getTime();
+			}
+
+		} else if (event instanceof PersonArrivalEvent) {
+			this.score += ifCfg.getArrivalUtility();
+
+			if (!Double.isNaN(this.carDepartureTime) && this.nightTimeWindows.isDuringNight(this.carDepartureTime, event.getTime())) {
+				this.score += ifCfg.getCarPenaltyNight();
+			}
+		}
+	}
+
+	@Override
+	public void finish() {
+		// nothing to do here!
+	}
+
+	@Override
+	public double getScore() {
+		return this.score;
+	}
+
+}
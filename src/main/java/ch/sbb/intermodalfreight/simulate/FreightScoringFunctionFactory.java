@@ -20,6 +20,8 @@ import org.matsim.core.scoring.functions.ScoringParameters;
 import org.matsim.core.scoring.functions.ScoringParametersForPerson;
 import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
 
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.PenaltyScoringApproach;
+
 /**
  * 
  * Replaces the default activity scoring by our freight-specific scoring approach.
@@ -34,13 +36,32 @@ public class FreightScoringFunctionFactory implements ScoringFunctionFactory {
 	private final Network network;
 	private final ScoringParametersForPerson params;
 	private final IntermodalFreightConfigGroup ifCfg;
+	private final FreightScoringRecords scoringRecords;
+	private final NightTimeWindows nightTimeWindows;
 
 	public FreightScoringFunctionFactory(Scenario scenario) {
+		this(scenario, new FreightScoringRecords((IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME)));
+	}
+	
+	/**
+	 * @param scoringRecords the precomputed desired times and tolerances per person, filled at startup and refreshed by {@link FreightStoreInitialTimes}
+	 */
+	FreightScoringFunctionFactory(Scenario scenario, FreightScoringRecords scoringRecords) {
+		this(scenario, scoringRecords, new SubpopulationScoringParameters( scenario ));
+	}
+	
+	/**
+	 * @param scoringRecords the precomputed desired times and tolerances per person, filled at startup and refreshed by {@link FreightStoreInitialTimes}
+	 * @param params the scoring parameters per person, may be shared with {@link FreightStoreInitialTimes}
+	 */
+	FreightScoringFunctionFactory(Scenario scenario, FreightScoringRecords scoringRecords, ScoringParametersForPerson params) {
 		this.config = scenario.getConfig();
-		this.params = new SubpopulationScoringParameters( scenario );
+		this.params = params;
 		this.network = scenario.getNetwork();
+		this.scoringRecords = scoringRecords;
 		
 		this.ifCfg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		this.nightTimeWindows = new NightTimeWindows(this.ifCfg);
 
 		log.info("FreightScoringFunctionFactory initialized.");
 	}
@@ -50,11 +71,20 @@ public class FreightScoringFunctionFactory implements ScoringFunctionFactory {
 		final ScoringParameters parameters = params.getScoringParameters( person );
 
 		SumScoringFunction sumScoringFunction = new SumScoringFunction();
-		sumScoringFunction.addScoringFunction(new FreightActivityScoring( person, parameters, ifCfg ));
+		if (this.scoringRecords.contains(person.getId())) {
+			sumScoringFunction.addScoringFunction(new FreightActivityScoring( parameters, ifCfg, 
+					this.scoringRecords.getDesiredArrival(person.getId()), this.scoringRecords.getDesiredDeparture(person.getId()), this.scoringRecords.getTolerance(person.getId()) ));
+		} else {
+			// the person was not part of the population at startup
+			sumScoringFunction.addScoringFunction(new FreightActivityScoring( person, parameters, ifCfg ));
+		}
 		sumScoringFunction.addScoringFunction(new CharyparNagelLegScoring( parameters , this.network, config.transit().getTransitModes() ));
 		sumScoringFunction.addScoringFunction(new CharyparNagelMoneyScoring( parameters ));
 		sumScoringFunction.addScoringFunction(new CharyparNagelAgentStuckScoring( parameters ));
 		sumScoringFunction.addScoringFunction(new ScoreEventScoring());
+		if (ifCfg.getPenaltyScoringApproach() == PenaltyScoringApproach.ScoringFunction) {
+			sumScoringFunction.addScoringFunction(new FreightPenaltyScoring(ifCfg, nightTimeWindows));
+		}
 		return sumScoringFunction;
 	}
 
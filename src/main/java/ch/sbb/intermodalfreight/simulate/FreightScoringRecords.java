@@ -0,0 +1,110 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import java.util.Arrays;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+
+/**
+ *
+ * Stores the desired arrival time, the desired departure time and the tolerance of each person in arrays which are addressed by the person index.
+ * The arrays are filled in one pass over the population at startup (see {@link FreightStoreInitialTimes#notifyStartup}) and the values of a person
+ * are refreshed by {@link FreightStoreInitialTimes} whenever the person attributes are written.
+ *
+ * The arrays are published through a volatile reference: An update which requires larger arrays copies them and publishes the copies,
+ * all other updates write into the current arrays and publish them again. The read path which is used by the scoring is therefore not synchronized.
+ *
+ * @author ikaddoura
+ *
+ */
+final class FreightScoringRecords {
+
+	private static final class Records {
+		private final double[] person2desiredArrival;
+		private final double[] person2desiredDeparture;
+		private final double[] person2tolerance;
+
+		private Records(int size) {
+			this.person2desiredArrival = new double[size];
+			this.person2desiredDeparture = new double[size];
+			this.person2tolerance = new double[size];
+			Arrays.fill(this.person2desiredArrival, Double.NaN);
+			Arrays.fill(this.person2desiredDeparture, Double.NaN);
+			Arrays.fill(this.person2tolerance, Double.NaN);
+		}
+
+		private Records(Records records, int size) {
+			this(size);
+			System.arraycopy(records.person2desiredArrival, 0, this.person2desiredArrival, 0, records.person2desiredArrival.length);
+			System.arraycopy(records.person2desiredDeparture, 0, this.person2desiredDeparture, 0, records.person2desiredDeparture.length);
+			System.arraycopy(records.person2tolerance, 0, this.person2tolerance, 0, records.person2tolerance.length);
+		}
+	}
+
+	private final IntermodalFreightConfigGroup ifCfg;
+
+	private volatile Records records = new Records(0);
+
+	FreightScoringRecords(IntermodalFreightConfigGroup ifCfg) {
+		this.ifCfg = ifCfg;
+	}
+
+	/**
+	 * Computes the records of all persons from the person attributes.
+	 */
+	synchronized void updateAll(Population population) {
+		Records newRecords = new Records(Id.getNumberOfIds(Person.class));
+		for (Person person : population.getPersons().values()) {
+			write(newRecords, person);
+		}
+		this.records = newRecords;
+	}
+
+	/**
+	 * Re-computes the record of the person from the person attributes.
+	 */
+	synchronized void update(Person person) {
+		Records currentRecords = this.records;
+		int personIndex = person.getId().index();
+		if (currentRecords.person2tolerance.length <= personIndex) {
+			currentRecords = new Records(currentRecords, Math.max(Id.getNumberOfIds(Person.class), personIndex + 1));
+		}
+		write(currentRecords, person);
+		this.records = currentRecords;
+	}
+
+	private void write(Records records, Person person) {
+		int personIndex = person.getId().index();
+		records.person2desiredArrival[personIndex] = FreightActivityScoring.getDesiredArrival(person);
+		records.person2desiredDeparture[personIndex] = FreightActivityScoring.getDesiredDeparture(person);
+		records.person2tolerance[personIndex] = FreightActivityScoring.getTolerance(person, this.ifCfg);
+	}
+
+	/**
+	 * @return true if there is a record of the person, i.e. the person was part of the population at startup or was updated afterwards
+	 */
+	boolean contains(Id<Person> personId) {
+		Records currentRecords = this.records;
+		return personId.index() < currentRecords.person2tolerance.length && !Double.isNaN(currentRecords.person2tolerance[personId.index()]);
+	}
+
+	/**
+	 * @return the desired arrival time, NaN if there is no desired arrival time
+	 */
+	double getDesiredArrival(Id<Person> personId) {
+		return this.records.person2desiredArrival[personId.index()];
+	}
+
+	/**
+	 * @return the desired departure time, NaN if there is no desired departure time
+	 */
+	double getDesiredDeparture(Id<Person> personId) {
+		return this.records.person2desiredDeparture[personId.index()];
+	}
+
+	double getTolerance(Id<Person> personId) {
+		return this.records.person2tolerance[personId.index()];
+	}
+
+}
@@ -3,6 +3,11 @@
  */
 package ch.sbb.intermodalfreight.simulate;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
@@ -11,10 +16,15 @@ import org.matsim.api.core.v01.events.ActivityStartEvent;
 import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
 import org.matsim.api.core.v01.events.handler.ActivityStartEventHandler;
 import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.StartupEvent;
 import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.StartupListener;
+import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.scoring.functions.ActivityUtilityParameters;
 import org.matsim.core.scoring.functions.ScoringParameters;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
 import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
 
 import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.DesiredArrivalTimeApproach;
@@ -23,38 +33,109 @@ import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.DesiredArr
  * 
  * Assumes that the departure and arrival times in the initial iteration are the desired arrival and departure times and writes them into the person attributes.
  * If the person attributes already contain the desired arrival and departure time attributes, the values will not be updated and this code does essentially nothing.
+ * If all persons already contain both attributes, the initial iteration is skipped entirely.
+ * 
+ * At startup, the {@link FreightScoringRecords} are filled from the person attributes and afterwards refreshed whenever a desired time is written.
+ * 
+ * Optionally, the handler removes itself from the events manager after the initial iteration (or at startup if there is nothing to do),
+ * so that the activity events of later iterations are no longer dispatched to it.
  * 
  * @author ikaddoura
  *
  */
-public class FreightStoreInitialTimes implements IterationEndsListener, ActivityEndEventHandler, ActivityStartEventHandler {
+public class FreightStoreInitialTimes implements StartupListener, IterationEndsListener, ActivityEndEventHandler, ActivityStartEventHandler {
 
 	private static final Logger log = LogManager.getLogger(FreightStoreInitialTimes.class);
 
 	private final Scenario scenario;
+	private final FreightScoringRecords scoringRecords;
+	private final IntermodalFreightConfigGroup ifCfg;
+	
+	// the scored activity types are computed once per subpopulation from the scoring parameters
+	private final ScoringParametersForPerson scoringParameters;
+	private final Map<String, Set<String>> subpopulation2scoredActivityTypes = new HashMap<>();
 
 	private int iterationCounter = 0;
+	
+	// false if all persons already have the initial times from the input plans file
+	private boolean storeInitialTimes = true;
 
 	public FreightStoreInitialTimes(Scenario scenario) {
+		this(scenario, null);
+	}
+	
+	/**
+	 * @param scoringRecords the records which are refreshed whenever a desired time is written into the person attributes, may be null
+	 */
+	FreightStoreInitialTimes(Scenario scenario, FreightScoringRecords scoringRecords) {
+		this(scenario, scoringRecords, new SubpopulationScoringParameters(scenario));
+	}
+	
+	/**
+	 * @param scoringRecords the records which are refreshed whenever a desired time is written into the person attributes, may be null
+	 * @param scoringParameters the scoring parameters per person, e.g. the same instance as used by the {@link FreightScoringFunctionFactory}
+	 */
+	FreightStoreInitialTimes(Scenario scenario, FreightScoringRecords scoringRecords, ScoringParametersForPerson scoringParameters) {
 		this.scenario = scenario;
+		this.scoringRecords = scoringRecords;
+		this.ifCfg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		this.scoringParameters = scoringParameters;
+	}
+	
+	/**
+	 * @return true if the activity type is scored for the subpopulation of the person
+	 */
+	private boolean isScoreAtAll(Person person, String activityType) {
+		String subpopulation = PopulationUtils.getSubpopulation(person);
+		Set<String> scoredActivityTypes = this.subpopulation2scoredActivityTypes.get(subpopulation);
+		if (scoredActivityTypes == null) {
+			scoredActivityTypes = new HashSet<>();
+			ScoringParameters params = this.scoringParameters.getScoringParameters(person);
+			for (Map.Entry<String, ActivityUtilityParameters> entry : params.utilParams.entrySet()) {
+				if (entry.getValue().isScoreAtAll()) {
+					scoredActivityTypes.add(entry.getKey());
+				}
+			}
+			this.subpopulation2scoredActivityTypes.put(subpopulation, scoredActivityTypes);
+		}
+		return scoredActivityTypes.contains(activityType);
+	}
+
+	@Override
+	public void notifyStartup(StartupEvent event) {
+		
+		// fill the scoring records in one pass, afterwards they are only refreshed when a desired time is written
+		if (this.scoringRecords != null) this.scoringRecords.updateAll(this.scenario.getPopulation());
+		
+		for (Person person : this.scenario.getPopulation().getPersons().values()) {
+			if (person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME) == null
+					|| person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME) == null) {
+				return;
+			}
+		}
+		
+		log.info("All persons already have the initial departure and arrival times from the input plans file. Not storing the times of the initial iteration.");
+		this.storeInitialTimes = false;
+		if (this.ifCfg.isRemoveStoreInitialTimesHandlerAfterInitialIteration()) {
+			removeHandler(event.getServices().getEvents());
+		}
 	}
 
 	@Override
 	public void handleEvent(ActivityEndEvent event) {
 		
-		if (iterationCounter == 0) {
+		if (storeInitialTimes && iterationCounter == 0) {
 			
 			if (!event.getActType().contains("interaction")) {
 				
 				if (!event.getActType().contains("freight")) throw new RuntimeException("Expecting a freight activity. Aborting..." + event.toString());
 				
 				Person person = this.scenario.getPopulation().getPersons().get(event.getPersonId());	
-				ScoringParameters params = new SubpopulationScoringParameters( scenario ).getScoringParameters(person);
-				ActivityUtilityParameters actParams = params.utilParams.get(event.getActType());
 
-				if (actParams.isScoreAtAll()) {
+				if (isScoreAtAll(person, event.getActType())) {
 					if (person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME) == null) {
 						person.getAttributes().putAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME, event.getTime());		
+						if (this.scoringRecords != null) this.scoringRecords.update(person);
 					} else {
 						log.warn("Using the initial departure times from the input plans file and not writing them again into the person attributes.");
 					}
@@ -67,24 +148,21 @@ public class FreightStoreInitialTimes implements IterationEndsListener, Activity
 	public void handleEvent(ActivityStartEvent event) {
 		
 		// only do the following in the initial iteration because we assume that the initial iteration defines the desired departure and arrival times
-		if (iterationCounter == 0) {
+		if (storeInitialTimes && iterationCounter == 0) {
 			
 			if (!event.getActType().contains("interaction")) {
 				
 				if (!event.getActType().contains("freight")) throw new RuntimeException("Expecting a freight activity. Aborting..." + event.toString());
 				
 				Person person = this.scenario.getPopulation().getPersons().get(event.getPersonId());	
-				ScoringParameters params = new SubpopulationScoringParameters( scenario ).getScoringParameters(person);
-				ActivityUtilityParameters actParams = params.utilParams.get(event.getActType());
-				IntermodalFreightConfigGroup imfcg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
 
-				if (actParams.isScoreAtAll()) {
+				if (isScoreAtAll(person, event.getActType())) {
 					if (person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME) == null) {
 						double arrivalTime = event.getTime();
 						
-						if (imfcg.getDesiredArrivalTimeApproach() == DesiredArrivalTimeApproach.UseArrivalTimeFromInitialIteration) {
+						if (ifCfg.getDesiredArrivalTimeApproach() == DesiredArrivalTimeApproach.UseArrivalTimeFromInitialIteration) {
 							// do not change the arrival time
-						} else if (imfcg.getDesiredArrivalTimeApproach() == DesiredArrivalTimeApproach.UseArrivalTimeFromInitialIterationAndMoveDayArrivalsToMorning) {
+						} else if (ifCfg.getDesiredArrivalTimeApproach() == DesiredArrivalTimeApproach.UseArrivalTimeFromInitialIterationAndMoveDayArrivalsToMorning) {
 							
 							int desiredArrivalDay = (int) (arrivalTime / (24. * 3600));
 							
@@ -100,10 +178,11 @@ public class FreightStoreInitialTimes implements IterationEndsListener, Activity
 							}
 														
 						} else {
-							throw new RuntimeException("Unknown desired arrival time appproach: " + imfcg.getDesiredArrivalTimeApproach());
+							throw new RuntimeException("Unknown desired arrival time appproach: " + ifCfg.getDesiredArrivalTimeApproach());
 						}
 						
 						person.getAttributes().putAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME, arrivalTime);
+						if (this.scoringRecords != null) this.scoringRecords.update(person);
 
 					} else {
 						log.warn("Using the initial arrival times from the input plans file and not writing them again into the person attributes.");
@@ -115,8 +194,16 @@ public class FreightStoreInitialTimes implements IterationEndsListener, Activity
 
 	@Override
 	public void notifyIterationEnds(IterationEndsEvent event) {
+		if (iterationCounter == 0 && storeInitialTimes && this.ifCfg.isRemoveStoreInitialTimesHandlerAfterInitialIteration()) {
+			removeHandler(event.getServices().getEvents());
+		}
 		iterationCounter++;
 	}
+	
+	private void removeHandler(EventsManager events) {
+		log.info("Removing the handler which stores the initial departure and arrival times from the events manager.");
+		events.removeHandler(this);
+	}
 }
 
 
@@ -19,6 +19,8 @@
 
 package ch.sbb.intermodalfreight.simulate;
 
+import java.util.Map;
+
 import org.matsim.core.config.ReflectiveConfigGroup;
 
 /**
@@ -36,6 +38,9 @@ public class IntermodalFreightConfigGroup extends ReflectiveConfigGroup {
 	public enum TerminalCapacityApproach { WithoutCapacityReduction, WithCapacityReduction };
 	public enum CarRoutingApproach { Default, Freespeed };
 	public enum DesiredArrivalTimeApproach { UseArrivalTimeFromInitialIteration, UseArrivalTimeFromInitialIterationAndMoveDayArrivalsToMorning };
+	public enum CraneServiceApproach { TrainPriority, TimeSliced };
+	public enum ContainerTransferApproach { Serial, Batched };
+	public enum PenaltyScoringApproach { ScoreEvents, ScoringFunction };
 
 	private double arrivingLateUtility = -1000.;
 	private double departingEarlyUtiliy = -1000.;
@@ -48,12 +53,27 @@ public class IntermodalFreightConfigGroup extends ReflectiveConfigGroup {
 	private double additionalToleranceForEmptyContainers = 0.;
 
 	private double carPenaltyNight = -1000.;
+	private String nightTimeWindows = NightTimeWindows.DEFAULT_NIGHT_TIME_WINDOWS;
+	private String weekendDays = "";
+	private String weekendNightTimeWindows = "00:00:00-24:00:00";
 	private double departureUtility = -2000.;
 	private double arrivalUtility = 2000.;
+	private PenaltyScoringApproach penaltyScoringApproach = PenaltyScoringApproach.ScoreEvents;
 	
 	private TerminalCapacityApproach terminalCapacityApproach = TerminalCapacityApproach.WithoutCapacityReduction;
+	private ContainerTransferApproach containerTransferApproach = ContainerTransferApproach.Serial;
+	private double containerTransferBatchHorizon = 300.;
 	private CarRoutingApproach carRoutingApproach = CarRoutingApproach.Freespeed;
 	private DesiredArrivalTimeApproach desiredArrivalTimeApproach = DesiredArrivalTimeApproach.UseArrivalTimeFromInitialIteration;
+	private boolean removeStoreInitialTimesHandlerAfterInitialIteration = false;
+	
+	private CraneServiceApproach craneServiceApproach = CraneServiceApproach.TrainPriority;
+	private double craneTrainServiceSlot = 1800.;
+	private double craneTruckServiceSlot = 600.;
+	
+	private boolean writeTerminalCraneMetrics = false;
+	private int terminalCraneMetricsBufferSize = 10000;
+	private double terminalCraneMetricsSampleInterval = 300.;
 	
 	@StringGetter( "tolerance" )
 	public double getTolerance() {
@@ -145,6 +165,26 @@ public class IntermodalFreightConfigGroup extends ReflectiveConfigGroup {
 		this.terminalCapacityApproach = terminalCapacityApproach;
 	}
 
+	@StringGetter( "containerTransferApproach" )
+	public ContainerTransferApproach getContainerTransferApproach() {
+		return containerTransferApproach;
+	}
+
+	@StringSetter( "containerTransferApproach" )
+	public void setContainerTransferApproach(ContainerTransferApproach containerTransferApproach) {
+		this.containerTransferApproach = containerTransferApproach;
+	}
+
+	@StringGetter( "containerTransferBatchHorizon" )
+	public double getContainerTransferBatchHorizon() {
+		return containerTransferBatchHorizon;
+	}
+
+	@StringSetter( "containerTransferBatchHorizon" )
+	public void setContainerTransferBatchHorizon(double containerTransferBatchHorizon) {
+		this.containerTransferBatchHorizon = containerTransferBatchHorizon;
+	}
+
 	@StringGetter( "carRoutingApproach" )
 	public CarRoutingApproach getCarRoutingApproach() {
 		return carRoutingApproach;
@@ -194,6 +234,129 @@ public class IntermodalFreightConfigGroup extends ReflectiveConfigGroup {
 	public void setDesiredArrivalTimeApproach(DesiredArrivalTimeApproach desiredArrivalTimeApproach) {
 		this.desiredArrivalTimeApproach = desiredArrivalTimeApproach;
 	}
+
+	@StringGetter( "nightTimeWindows" )
+	public String getNightTimeWindows() {
+		return nightTimeWindows;
+	}
+
+	@StringSetter( "nightTimeWindows" )
+	public void setNightTimeWindows(String nightTimeWindows) {
+		this.nightTimeWindows = nightTimeWindows;
+	}
+
+	@StringGetter( "weekendDays" )
+	public String getWeekendDays() {
+		return weekendDays;
+	}
+
+	@StringSetter( "weekendDays" )
+	public void setWeekendDays(String weekendDays) {
+		this.weekendDays = weekendDays;
+	}
+
+	@StringGetter( "weekendNightTimeWindows" )
+	public String getWeekendNightTimeWindows() {
+		return weekendNightTimeWindows;
+	}
+
+	@StringSetter( "weekendNightTimeWindows" )
+	public void setWeekendNightTimeWindows(String weekendNightTimeWindows) {
+		this.weekendNightTimeWindows = weekendNightTimeWindows;
+	}
+
+	@StringGetter( "penaltyScoringApproach" )
+	public PenaltyScoringApproach getPenaltyScoringApproach() {
+		return penaltyScoringApproach;
+	}
+
+	@StringSetter( "penaltyScoringApproach" )
+	public void setPenaltyScoringApproach(PenaltyScoringApproach penaltyScoringApproach) {
+		this.penaltyScoringApproach = penaltyScoringApproach;
+	}
+
+	@StringGetter( "removeStoreInitialTimesHandlerAfterInitialIteration" )
+	public boolean isRemoveStoreInitialTimesHandlerAfterInitialIteration() {
+		return removeStoreInitialTimesHandlerAfterInitialIteration;
+	}
+
+	@StringSetter( "removeStoreInitialTimesHandlerAfterInitialIteration" )
+	public void setRemoveStoreInitialTimesHandlerAfterInitialIteration(boolean removeStoreInitialTimesHandlerAfterInitialIteration) {
+		this.removeStoreInitialTimesHandlerAfterInitialIteration = removeStoreInitialTimesHandlerAfterInitialIteration;
+	}
+
+	@Override
+	public Map<String, String> getComments() {
+		Map<String, String> comments = super.getComments();
+		comments.put("craneServiceApproach", "Decides whether the crane serves the trucks while there is work for the trains. "
+				+ CraneServiceApproach.TrainPriority + ": the truck-stack queue is deactivated as long as there is work for the trains. "
+				+ CraneServiceApproach.TimeSliced + ": the trains are served only for the train service slot, then the crane is shared between the trains and the trucks for the truck service slot, and so on. "
+				+ "The trains are not paused while the crane is shared, the time per container increases instead (only with the terminal capacity approach "
+				+ TerminalCapacityApproach.WithCapacityReduction + ").");
+		comments.put("craneTrainServiceSlot", "Only used by the " + CraneServiceApproach.TimeSliced + " crane service approach: the time in seconds the crane serves the trains only.");
+		comments.put("craneTruckServiceSlot", "Only used by the " + CraneServiceApproach.TimeSliced + " crane service approach: the time in seconds the crane is shared between the trains and the trucks.");
+		return comments;
+	}
+
+	@StringGetter( "craneServiceApproach" )
+	public CraneServiceApproach getCraneServiceApproach() {
+		return craneServiceApproach;
+	}
+
+	@StringSetter( "craneServiceApproach" )
+	public void setCraneServiceApproach(CraneServiceApproach craneServiceApproach) {
+		this.craneServiceApproach = craneServiceApproach;
+	}
+
+	@StringGetter( "craneTrainServiceSlot" )
+	public double getCraneTrainServiceSlot() {
+		return craneTrainServiceSlot;
+	}
+
+	@StringSetter( "craneTrainServiceSlot" )
+	public void setCraneTrainServiceSlot(double craneTrainServiceSlot) {
+		this.craneTrainServiceSlot = craneTrainServiceSlot;
+	}
+
+	@StringGetter( "craneTruckServiceSlot" )
+	public double getCraneTruckServiceSlot() {
+		return craneTruckServiceSlot;
+	}
+
+	@StringSetter( "craneTruckServiceSlot" )
+	public void setCraneTruckServiceSlot(double craneTruckServiceSlot) {
+		this.craneTruckServiceSlot = craneTruckServiceSlot;
+	}
+
+	@StringGetter( "writeTerminalCraneMetrics" )
+	public boolean isWriteTerminalCraneMetrics() {
+		return writeTerminalCraneMetrics;
+	}
+
+	@StringSetter( "writeTerminalCraneMetrics" )
+	public void setWriteTerminalCraneMetrics(boolean writeTerminalCraneMetrics) {
+		this.writeTerminalCraneMetrics = writeTerminalCraneMetrics;
+	}
+
+	@StringGetter( "terminalCraneMetricsBufferSize" )
+	public int getTerminalCraneMetricsBufferSize() {
+		return terminalCraneMetricsBufferSize;
+	}
+
+	@StringSetter( "terminalCraneMetricsBufferSize" )
+	public void setTerminalCraneMetricsBufferSize(int terminalCraneMetricsBufferSize) {
+		this.terminalCraneMetricsBufferSize = terminalCraneMetricsBufferSize;
+	}
+
+	@StringGetter( "terminalCraneMetricsSampleInterval" )
+	public double getTerminalCraneMetricsSampleInterval() {
+		return terminalCraneMetricsSampleInterval;
+	}
+
+	@StringSetter( "terminalCraneMetricsSampleInterval" )
+	public void setTerminalCraneMetricsSampleInterval(double terminalCraneMetricsSampleInterval) {
+		this.terminalCraneMetricsSampleInterval = terminalCraneMetricsSampleInterval;
+	}
 	
 	
 	
@@ -0,0 +1,135 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import java.util.BitSet;
+
+import org.matsim.core.utils.misc.Time;
+
+/**
+ *
+ * The night time windows in which car legs are penalized, see {@link IntermodalFreightConfigGroup#getNightTimeWindows()}.
+ *
+ * The windows are precomputed into a bitmap with one bit per second of a day, or of a week if there are weekend days.
+ * The bitmap is repeated periodically, i.e. any simulation time can be looked up with a single bit test.
+ *
+ * @author ikaddoura
+ *
+ */
+public final class NightTimeWindows {
+
+	private static final int DAY = 24 * 3600;
+	private static final int WEEK = 7 * DAY;
+
+	/**
+	 * From 10 p.m. till 5 a.m., a leg which ends at exactly 10 p.m. or starts at exactly 5 a.m. does not count as a night leg.
+	 */
+	public static final String DEFAULT_NIGHT_TIME_WINDOWS = "00:00:00-05:00:00,22:00:01-24:00:00";
+
+	static final NightTimeWindows DEFAULT = new NightTimeWindows(DEFAULT_NIGHT_TIME_WINDOWS, "", "");
+
+	private final int period;
+	private final BitSet nightSeconds;
+
+	public NightTimeWindows(IntermodalFreightConfigGroup ifCfg) {
+		this(ifCfg.getNightTimeWindows(), ifCfg.getWeekendDays(), ifCfg.getWeekendNightTimeWindows());
+	}
+
+	/**
+	 * @param nightTimeWindows comma-separated time windows, e.g. "00:00:00-05:00:00,22:00:01-24:00:00", each window includes the start and excludes the end
+	 * @param weekendDays comma-separated days of the week (0-6), where 0 is the first simulated day, may be empty
+	 * @param weekendNightTimeWindows comma-separated time windows which are applied in addition on the weekend days
+	 */
+	public NightTimeWindows(String nightTimeWindows, String weekendDays, String weekendNightTimeWindows) {
+		int[] weekendDayNumbers = parseDays(weekendDays);
+		this.period = weekendDayNumbers.length == 0 ? DAY : WEEK;
+		this.nightSeconds = new BitSet(this.period);
+
+		for (int day = 0; day < this.period / DAY; day++) {
+			addWindows(day, nightTimeWindows);
+		}
+		for (int day : weekendDayNumbers) {
+			addWindows(day, weekendNightTimeWindows);
+		}
+	}
+
+	private void addWindows(int day, String windows) {
+		if (windows == null || windows.isBlank()) return;
+
+		for (String window : windows.split(",")) {
+			String[] startAndEnd = window.trim().split("-");
+			if (startAndEnd.length != 2) throw new RuntimeException("Can't interpret the night time window " + window + ". Expecting a format such as 22:00:00-24:00:00. Aborting...");
+
+			int start = (int) Time.parseTime(startAndEnd[0].trim());
+			int end = (int) Time.parseTime(startAndEnd[1].trim());
+			if (start < 0 || end > DAY || start > end) throw new RuntimeException("The night time window " + window + " must be within a single day. Aborting...");
+
+			this.nightSeconds.set(day * DAY + start, day * DAY + end);
+		}
+	}
+
+	private static int[] parseDays(String days) {
+		if (days == null || days.isBlank()) return new int[0];
+
+		String[] dayStrings = days.split(",");
+		int[] dayNumbers = new int[dayStrings.length];
+		for (int i = 0; i < dayStrings.length; i++) {
+			dayNumbers[i] = Integer.parseInt(dayStrings[i].trim());
+			if (dayNumbers[i] < 0 || dayNumbers[i] > 6) throw new RuntimeException("The weekend day " + dayNumbers[i] + " must be between 0 and 6. Aborting...");
+		}
+		return dayNumbers;
+	}
+
+	/**
+	 * @return true if the second which contains the given time is during the night
+	 */
+	public boolean isNight(double time) {
+		return this.nightSeconds.get((int) Math.floorMod((long) Math.floor(time), (long) this.period));
+	}
+
+	/**
+	 * @return true if any second between the departure and the arrival time is during the night
+	 */
+	public boolean isDuringNight(double departureTime, double arrivalTime) {
+		long from = (long) Math.floor(departureTime);
+		long to = (long) Math.ceil(arrivalTime);
+
+		if (to - from + 1 >= this.period) return !this.nightSeconds.isEmpty();
+
+		int fromSecond = (int) Math.floorMod(from, (long) this.period);
+		int toSecond = (int) Math.floorMod(to, (long) this.period);
+
+		int nextNightSecond = this.nightSeconds.nextSetBit(fromSecond);
+		if (fromSecond <= toSecond) {
+			return nextNightSecond >= 0 && nextNightSecond <= toSecond;
+		} else {
+			// the interval wraps around the end of the period
+			if (nextNightSecond >= 0) return true;
+			nextNightSecond = this.nightSeconds.nextSetBit(0);
+			return nextNightSecond >= 0 && nextNightSecond <= toSecond;
+		}
+	}
+
+	/**
+	 * @return the number of night seconds between the departure and the arrival time, e.g. to compute the share of night driving
+	 */
+	public long getNightSeconds(double departureTime, double arrivalTime) {
+		long from = (long) Math.floor(departureTime);
+		long to = (long) Math.ceil(arrivalTime);
+		if (to <= from) return 0;
+
+		long periods = (to - from) / this.period;
+		long nightSeconds = periods * this.nightSeconds.cardinality();
+
+		// the remaining seconds [from + periods * period, to)
+		int fromSecond = (int) Math.floorMod(from, (long) this.period);
+		int remainingSeconds = (int) ((to - from) - periods * this.period);
+		int toSecond = fromSecond + remainingSeconds;
+		if (toSecond <= this.period) {
+			nightSeconds += this.nightSeconds.get(fromSecond, toSecond).cardinality();
+		} else {
+			nightSeconds += this.nightSeconds.get(fromSecond, this.period).cardinality();
+			nightSeconds += this.nightSeconds.get(0, toSecond - this.period).cardinality();
+		}
+		return nightSeconds;
+	}
+
+}
@@ -26,9 +26,12 @@ import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.core.controler.Controler;
 import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
+import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
 import org.matsim.core.utils.misc.Time;
 
 import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.CarRoutingApproach;
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.PenaltyScoringApproach;
 import ch.sbb.matsim.mobsim.qsim.SBBTransitModule;
 import ch.sbb.matsim.mobsim.qsim.pt.SBBTransitEngineQSimModule;
 
@@ -123,10 +126,15 @@ public class RunIntermodalFreightScenario {
         	SBBTransitEngineQSimModule.configure(components);
         });
         
-        // replace activity scoring
-        controler.setScoringFunctionFactory(new FreightScoringFunctionFactory(scenario));
+        // replace activity scoring; the desired times and tolerances are precomputed per person and the scoring parameters are shared
+        FreightScoringRecords scoringRecords = new FreightScoringRecords(ifCfg);
+        ScoringParametersForPerson scoringParameters = new SubpopulationScoringParameters(scenario);
+        controler.setScoringFunctionFactory(new FreightScoringFunctionFactory(scenario, scoringRecords, scoringParameters));
         
-		TerminalQueueDeactivationEventHandler queueHandler = new TerminalQueueDeactivationEventHandler(scenario);
+		// optionally record the crane activity per terminal
+		TerminalCraneMetrics craneMetrics = ifCfg.isWriteTerminalCraneMetrics() ? new TerminalCraneMetrics(scenario, ifCfg.getTerminalCraneMetricsBufferSize(), ifCfg.getTerminalCraneMetricsSampleInterval()) : null;
+		
+		TerminalQueueDeactivationEventHandler queueHandler = new TerminalQueueDeactivationEventHandler(scenario, craneMetrics);
 		
         // write departure and arrival times of initial iteration into person attributes
         controler.addOverridingModule(new AbstractModule() {	
@@ -134,18 +142,27 @@ public class RunIntermodalFreightScenario {
 			public void install() {
 				
 				// store initial arrival times and write into person plan (if not provided in the attributes)
-				FreightStoreInitialTimes initialTimes = new FreightStoreInitialTimes(scenario);
+				FreightStoreInitialTimes initialTimes = new FreightStoreInitialTimes(scenario, scoringRecords, scoringParameters);
 				this.addEventHandlerBinding().toInstance(initialTimes);
 				this.addControlerListenerBinding().toInstance(initialTimes);
 				
 				// a penalty when using the car mode at night
-				FreightPenaltyHandler nightPenaltyHandler = new FreightPenaltyHandler(scenario);
-				this.addEventHandlerBinding().toInstance(nightPenaltyHandler);
+				if (ifCfg.getPenaltyScoringApproach() == PenaltyScoringApproach.ScoreEvents) {
+					FreightPenaltyHandler nightPenaltyHandler = new FreightPenaltyHandler(scenario);
+					this.addEventHandlerBinding().toInstance(nightPenaltyHandler);
+				} else if (ifCfg.getPenaltyScoringApproach() == PenaltyScoringApproach.ScoringFunction) {
+					// the penalties are applied by the scoring function, see FreightPenaltyScoring
+				} else {
+					throw new RuntimeException("Unknown penalty scoring approach. Aborting...");
+				}
 				
 				// handle the queues...
 				this.bind(TerminalQueueDeactivationEventHandler.class).toInstance(queueHandler);
 				this.addEventHandlerBinding().toInstance(queueHandler);
 				this.addMobsimListenerBinding().toInstance(queueHandler);		
+				if (craneMetrics != null) {
+					this.addControlerListenerBinding().toInstance(craneMetrics);
+				}
 				
 				if (ifCfg.getCarRoutingApproach() == CarRoutingApproach.Default) {
 					// nothing to do
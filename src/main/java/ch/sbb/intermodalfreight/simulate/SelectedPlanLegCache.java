@@ -0,0 +1,116 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import java.util.Arrays;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.pt.routes.TransitPassengerRoute;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+
+/**
+ *
+ * Stores the legs of the selected plans in flattened arrays which are addressed by the person index and the leg number.
+ * Only persons with carKV or pt legs are stored. Should be rebuilt whenever the selected plans may have changed, i.e. once per mobsim.
+ *
+ * @author ikaddoura
+ *
+ */
+final class SelectedPlanLegCache {
+
+	private final String carKVLegPrefix;
+
+	private int[] person2firstLeg = new int[0];
+	private int[] person2numberOfLegs = new int[0];
+	private String[] legModes = new String[0];
+	private Id<?>[] legEndLinks = new Id<?>[0];
+	private Id<?>[] legTransitRoutes = new Id<?>[0];
+
+	SelectedPlanLegCache(String carKVLegPrefix) {
+		this.carKVLegPrefix = carKVLegPrefix;
+	}
+
+	void build(Population population) {
+
+		int persons = Id.getNumberOfIds(Person.class);
+		if (this.person2firstLeg.length < persons) {
+			this.person2firstLeg = new int[persons];
+			this.person2numberOfLegs = new int[persons];
+		}
+		Arrays.fill(this.person2firstLeg, -1);
+		Arrays.fill(this.person2numberOfLegs, 0);
+
+		// first count the legs...
+		int numberOfLegs = 0;
+		for (Person person : population.getPersons().values()) {
+			if (person.getSelectedPlan() == null) continue;
+			int legs = 0;
+			boolean relevant = false;
+			for (Leg leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+				legs++;
+				if (leg.getMode().equals(TransportMode.pt) || leg.getMode().startsWith(carKVLegPrefix)) {
+					relevant = true;
+				}
+			}
+			if (relevant) {
+				this.person2firstLeg[person.getId().index()] = numberOfLegs;
+				this.person2numberOfLegs[person.getId().index()] = legs;
+				numberOfLegs += legs;
+			}
+		}
+
+		if (this.legModes.length < numberOfLegs) {
+			this.legModes = new String[numberOfLegs];
+			this.legEndLinks = new Id<?>[numberOfLegs];
+			this.legTransitRoutes = new Id<?>[numberOfLegs];
+		}
+
+		// ... then store them
+		for (Person person : population.getPersons().values()) {
+			int legIndex = this.person2firstLeg[person.getId().index()];
+			if (legIndex < 0) continue;
+			for (Leg leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+				this.legModes[legIndex] = leg.getMode();
+				this.legEndLinks[legIndex] = leg.getRoute() == null ? null : leg.getRoute().getEndLinkId();
+				this.legTransitRoutes[legIndex] = leg.getRoute() instanceof TransitPassengerRoute ? ((TransitPassengerRoute) leg.getRoute()).getRouteId() : null;
+				legIndex++;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of legs of the person's selected plan, 0 if the person has no carKV or pt legs
+	 */
+	int getNumberOfLegs(Id<Person> personId) {
+		int personIndex = personId.index();
+		return personIndex < this.person2numberOfLegs.length ? this.person2numberOfLegs[personIndex] : 0;
+	}
+
+	String getMode(Id<Person> personId, int legNr) {
+		return this.legModes[getLegIndex(personId, legNr)];
+	}
+
+	@SuppressWarnings("unchecked")
+	Id<Link> getEndLinkId(Id<Person> personId, int legNr) {
+		return (Id<Link>) this.legEndLinks[getLegIndex(personId, legNr)];
+	}
+
+	/**
+	 * @return the transit route of a pt leg, null if the leg has no transit passenger route
+	 */
+	@SuppressWarnings("unchecked")
+	Id<TransitRoute> getTransitRouteId(Id<Person> personId, int legNr) {
+		return (Id<TransitRoute>) this.legTransitRoutes[getLegIndex(personId, legNr)];
+	}
+
+	private int getLegIndex(Id<Person> personId, int legNr) {
+		if (legNr < 0 || legNr >= getNumberOfLegs(personId)) {
+			throw new RuntimeException("No cached leg at position " + legNr + " for agent " + personId + ". Aborting...");
+		}
+		return this.person2firstLeg[personId.index()] + legNr;
+	}
+}
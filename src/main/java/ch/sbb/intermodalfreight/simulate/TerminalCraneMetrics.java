@@ -0,0 +1,364 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.IdMap;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ *
+ * Records the crane activity per terminal and writes it into the iteration output directory:
+ *
+ * - terminalCraneMetrics.csv.gz: one row per queue activation, queue deactivation and train departure
+ *   with the duration of the previous queue status or the train dwell time and the number of vehicles on the queue and stack links.
+ *   In addition, the number of vehicles on the queue and stack links is sampled in a fixed interval, i.e. the rows of type 'queueSampled'
+ *   provide the queue length series of each terminal. A sample is only written if the number of vehicles has changed since the previous sample
+ *   of the terminal; its duration is the time since the last queue status change.
+ * - terminalCraneSummary.csv: active and deactive durations, number of signal flips and train dwell times per terminal.
+ *
+ * The records are stored in ring buffers per terminal, i.e. only the latest records are kept if a buffer is full.
+ * A buffer is allocated with the first record of a terminal, i.e. terminals without any activity do not require any memory.
+ * The queue records are written by the mobsim thread, the train records by the events processing thread.
+ *
+ * @author ikaddoura
+ *
+ */
+public class TerminalCraneMetrics implements IterationEndsListener {
+
+	private static final Logger log = LogManager.getLogger(TerminalCraneMetrics.class);
+
+	private static final String SEPARATOR = ";";
+
+	private static final byte QUEUE_ACTIVATED = 0;
+	private static final byte QUEUE_DEACTIVATED = 1;
+	private static final byte TRAIN_DEPARTED = 2;
+	private static final byte QUEUE_SAMPLED = 3;
+	private static final String[] RECORD_TYPES = { "queueActivated", "queueDeactivated", "trainDeparted", "queueSampled" };
+
+	private final Scenario scenario;
+	private final int bufferSize;
+	private final double sampleInterval;
+	private final IdMap<TransitStopFacility, TerminalRecords> terminal2records = new IdMap<>(TransitStopFacility.class);
+
+	// mobsim thread
+	private double nextSampleTime;
+
+	// events processing thread
+	private double[] train2arrivalTime;
+
+	/**
+	 * The records of a single terminal.
+	 */
+	private static final class TerminalRecords {
+
+		private final int bufferSize;
+
+		// mobsim thread
+		private RingBuffer queueRecords;
+		private double lastQueueStatusChange;
+		private boolean queueActive;
+		private double activeTime;
+		private double deactiveTime;
+		private int flips;
+		private int sampledQueueVehicles;
+		private int sampledStackVehicles;
+		private double lastQueueRecordTime;
+
+		// events processing thread
+		private RingBuffer trainRecords;
+		private int trains;
+		private double dwellTime;
+		private double maxDwellTime;
+		private double lastTrainRecordTime;
+
+		private TerminalRecords(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+
+		private void addQueueRecord(byte type, double time, double duration, int queueVehicles, int stackVehicles) {
+			if (this.queueRecords == null) {
+				this.queueRecords = new RingBuffer(this.bufferSize);
+			}
+			this.queueRecords.add(type, time, duration, queueVehicles, stackVehicles);
+			this.lastQueueRecordTime = time;
+		}
+
+		private void addTrainRecord(byte type, double time, double duration, int queueVehicles, int stackVehicles) {
+			if (this.trainRecords == null) {
+				this.trainRecords = new RingBuffer(this.bufferSize);
+			}
+			this.trainRecords.add(type, time, duration, queueVehicles, stackVehicles);
+			this.lastTrainRecordTime = time;
+		}
+
+		private void reset(double startTime) {
+			if (this.queueRecords != null) this.queueRecords.clear();
+			this.lastQueueStatusChange = startTime;
+			this.queueActive = true;
+			this.activeTime = 0.;
+			this.deactiveTime = 0.;
+			this.flips = 0;
+			this.sampledQueueVehicles = 0;
+			this.sampledStackVehicles = 0;
+			this.lastQueueRecordTime = startTime;
+
+			if (this.trainRecords != null) this.trainRecords.clear();
+			this.trains = 0;
+			this.dwellTime = 0.;
+			this.maxDwellTime = 0.;
+			this.lastTrainRecordTime = startTime;
+		}
+	}
+
+	/**
+	 * A fixed size buffer which overwrites the oldest record if it is full.
+	 */
+	private static final class RingBuffer {
+
+		private final byte[] types;
+		private final double[] times;
+		private final double[] durations;
+		private final int[] queueVehicles;
+		private final int[] stackVehicles;
+		private long records = 0;
+
+		private RingBuffer(int size) {
+			this.types = new byte[size];
+			this.times = new double[size];
+			this.durations = new double[size];
+			this.queueVehicles = new int[size];
+			this.stackVehicles = new int[size];
+		}
+
+		private void add(byte type, double time, double duration, int queueVehicles, int stackVehicles) {
+			int i = (int) (this.records % this.types.length);
+			this.types[i] = type;
+			this.times[i] = time;
+			this.durations[i] = duration;
+			this.queueVehicles[i] = queueVehicles;
+			this.stackVehicles[i] = stackVehicles;
+			this.records++;
+		}
+
+		private static int size(RingBuffer buffer) {
+			return buffer == null ? 0 : (int) Math.min(buffer.records, buffer.types.length);
+		}
+
+		private int size() {
+			return size(this);
+		}
+
+		private static long dropped(RingBuffer buffer) {
+			return buffer == null ? 0 : buffer.records - buffer.size();
+		}
+
+		/**
+		 * @return the buffer position of the i-th record which is still stored, ordered by insertion
+		 */
+		private int position(int i) {
+			return (int) ((this.records - size() + i) % this.types.length);
+		}
+
+		private void clear() {
+			this.records = 0;
+		}
+	}
+
+	/**
+	 * @param bufferSize the maximum number of queue records and train records per terminal
+	 * @param sampleInterval the interval in seconds in which the number of vehicles on the queue and stack links is sampled
+	 */
+	public TerminalCraneMetrics(Scenario scenario, int bufferSize, double sampleInterval) {
+		if (bufferSize <= 0) throw new RuntimeException("The terminal crane metrics buffer size must be larger than zero. Aborting...");
+		if (sampleInterval <= 0.) throw new RuntimeException("The terminal crane metrics sample interval must be larger than zero. Aborting...");
+
+		this.scenario = scenario;
+		this.bufferSize = bufferSize;
+		this.sampleInterval = sampleInterval;
+		this.train2arrivalTime = new double[Id.getNumberOfIds(Vehicle.class)];
+
+		for (Id<TransitStopFacility> terminalId : scenario.getTransitSchedule().getFacilities().keySet()) {
+			this.terminal2records.put(terminalId, new TerminalRecords(bufferSize));
+		}
+	}
+
+	/**
+	 * Called before the mobsim starts.
+	 */
+	void reset() {
+		double startTime = this.scenario.getConfig().qsim().getStartTime().orElse(0.);
+		for (TerminalRecords records : this.terminal2records.values()) {
+			records.reset(startTime);
+		}
+		this.nextSampleTime = startTime;
+		if (this.train2arrivalTime.length < Id.getNumberOfIds(Vehicle.class)) {
+			this.train2arrivalTime = new double[Id.getNumberOfIds(Vehicle.class)];
+		}
+		Arrays.fill(this.train2arrivalTime, Double.NaN);
+	}
+
+	/**
+	 * Called by the mobsim thread whenever the truck-stack queue is activated or deactivated.
+	 */
+	void recordQueueStatusChange(Id<TransitStopFacility> terminalId, double time, boolean active, int queueVehicles, int stackVehicles) {
+		TerminalRecords records = this.terminal2records.get(terminalId);
+		double duration = time - records.lastQueueStatusChange;
+		if (records.queueActive) {
+			records.activeTime += duration;
+		} else {
+			records.deactiveTime += duration;
+		}
+		records.lastQueueStatusChange = time;
+		records.queueActive = active;
+		records.flips++;
+		records.addQueueRecord(active ? QUEUE_ACTIVATED : QUEUE_DEACTIVATED, time, duration, queueVehicles, stackVehicles);
+	}
+
+	/**
+	 * Called by the mobsim thread in each time step.
+	 *
+	 * @return true if the number of vehicles on the queue and stack links should be sampled at the given time
+	 */
+	boolean isSampleTime(double time) {
+		if (time < this.nextSampleTime) return false;
+
+		while (this.nextSampleTime <= time) {
+			this.nextSampleTime += this.sampleInterval;
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the mobsim thread at each sample time.
+	 */
+	void recordQueueSample(Id<TransitStopFacility> terminalId, double time, int queueVehicles, int stackVehicles) {
+		TerminalRecords records = this.terminal2records.get(terminalId);
+		if (records.sampledQueueVehicles == queueVehicles && records.sampledStackVehicles == stackVehicles) return;
+
+		records.sampledQueueVehicles = queueVehicles;
+		records.sampledStackVehicles = stackVehicles;
+		records.addQueueRecord(QUEUE_SAMPLED, time, time - records.lastQueueStatusChange, queueVehicles, stackVehicles);
+	}
+
+	/**
+	 * Called by the events processing thread.
+	 */
+	void recordTrainArrival(Id<Vehicle> trainId, double time) {
+		if (this.train2arrivalTime.length <= trainId.index()) {
+			int oldLength = this.train2arrivalTime.length;
+			this.train2arrivalTime = Arrays.copyOf(this.train2arrivalTime, Math.max(trainId.index() + 1, oldLength + oldLength / 2));
+			Arrays.fill(this.train2arrivalTime, oldLength, this.train2arrivalTime.length, Double.NaN);
+		}
+		this.train2arrivalTime[trainId.index()] = time;
+	}
+
+	/**
+	 * Called by the events processing thread.
+	 */
+	void recordTrainDeparture(Id<TransitStopFacility> terminalId, Id<Vehicle> trainId, double time, int queueVehicles, int stackVehicles) {
+		double arrivalTime = this.train2arrivalTime[trainId.index()];
+		if (Double.isNaN(arrivalTime)) throw new RuntimeException("Train " + trainId + " departs without arriving. Aborting...");
+		this.train2arrivalTime[trainId.index()] = Double.NaN;
+
+		TerminalRecords records = this.terminal2records.get(terminalId);
+		double dwellTime = time - arrivalTime;
+		records.trains++;
+		records.dwellTime += dwellTime;
+		records.maxDwellTime = Math.max(records.maxDwellTime, dwellTime);
+		records.addTrainRecord(TRAIN_DEPARTED, time, dwellTime, queueVehicles, stackVehicles);
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+
+		// the last queue status lasts until the end of the simulation, or until the last record if there is no end time
+		double endTime = this.scenario.getConfig().qsim().getEndTime().orElse(getLastRecordTime());
+		for (TerminalRecords records : this.terminal2records.values()) {
+			if (records.queueActive) {
+				records.activeTime += endTime - records.lastQueueStatusChange;
+			} else {
+				records.deactiveTime += endTime - records.lastQueueStatusChange;
+			}
+			records.lastQueueStatusChange = endTime;
+		}
+
+		String recordsFile = event.getServices().getControlerIO().getIterationFilename(event.getIteration(), "terminalCraneMetrics.csv.gz");
+		String summaryFile = event.getServices().getControlerIO().getIterationFilename(event.getIteration(), "terminalCraneSummary.csv");
+
+		long dropped = 0;
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(recordsFile)) {
+			writer.write(String.join(SEPARATOR, "terminal", "time", "type", "duration", "queueVehicles", "stackVehicles"));
+			writer.newLine();
+
+			for (Id<TransitStopFacility> terminalId : this.terminal2records.keySet()) {
+				TerminalRecords records = this.terminal2records.get(terminalId);
+				dropped += RingBuffer.dropped(records.queueRecords) + RingBuffer.dropped(records.trainRecords);
+
+				// merge the queue and train records by time
+				int queueRecords = RingBuffer.size(records.queueRecords);
+				int trainRecords = RingBuffer.size(records.trainRecords);
+				int q = 0;
+				int t = 0;
+				while (q < queueRecords || t < trainRecords) {
+					boolean nextIsQueueRecord = t >= trainRecords || (q < queueRecords
+							&& records.queueRecords.times[records.queueRecords.position(q)] <= records.trainRecords.times[records.trainRecords.position(t)]);
+					if (nextIsQueueRecord) {
+						writeRecord(writer, terminalId, records.queueRecords, records.queueRecords.position(q));
+						q++;
+					} else {
+						writeRecord(writer, terminalId, records.trainRecords, records.trainRecords.position(t));
+						t++;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(summaryFile)) {
+			writer.write(String.join(SEPARATOR, "terminal", "activeTime", "deactiveTime", "flips", "trains", "averageDwellTime", "maxDwellTime"));
+			writer.newLine();
+
+			for (Id<TransitStopFacility> terminalId : this.terminal2records.keySet()) {
+				TerminalRecords records = this.terminal2records.get(terminalId);
+				writer.write(terminalId + SEPARATOR + records.activeTime + SEPARATOR + records.deactiveTime + SEPARATOR + records.flips
+						+ SEPARATOR + records.trains + SEPARATOR + (records.trains > 0 ? records.dwellTime / records.trains : 0.)
+						+ SEPARATOR + records.maxDwellTime);
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		if (dropped > 0) {
+			log.warn(dropped + " terminal crane records were overwritten because the buffer size of " + this.bufferSize + " records per terminal was exceeded. "
+					+ "Only the latest records are written. The summary accounts for all records.");
+		}
+	}
+
+	private double getLastRecordTime() {
+		double lastRecordTime = this.scenario.getConfig().qsim().getStartTime().orElse(0.);
+		for (TerminalRecords records : this.terminal2records.values()) {
+			lastRecordTime = Math.max(lastRecordTime, Math.max(records.lastQueueRecordTime, records.lastTrainRecordTime));
+		}
+		return lastRecordTime;
+	}
+
+	private static void writeRecord(BufferedWriter writer, Id<TransitStopFacility> terminalId, RingBuffer buffer, int position) throws IOException {
+		writer.write(terminalId + SEPARATOR + buffer.times[position] + SEPARATOR + RECORD_TYPES[buffer.types[position]] + SEPARATOR + buffer.durations[position]
+				+ SEPARATOR + buffer.queueVehicles[position] + SEPARATOR + buffer.stackVehicles[position]);
+		writer.newLine();
+	}
+
+}
@@ -0,0 +1,75 @@
+package ch.sbb.intermodalfreight.simulate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * The crane capacity of a terminal which is shared between the trains at the terminal and the truck-stack queue.
+ * 
+ * This is a deliberate simplification of a fair allocation of the crane-seconds: The time per container of a train is multiplied by the number of users,
+ * i.e. the trains at the terminal plus one for the truck-stack queue if it is served while there is work for the trains.
+ * The factor is read when a container starts to be moved and applies to this container, a later change of the users does not change the containers in progress.
+ * A train counts as a user while it is at the terminal, even if it has no more containers to move, and the crane-seconds which are not used by a user
+ * are not redistributed to the other users.
+ * 
+ * The trains are updated by the events processing thread, the truck service by the mobsim thread.
+ * The read methods are lock-free and may be called by the transit stop handlers at any time.
+ * 
+ * @author ikaddoura
+ *
+ */
+public final class TerminalCraneResource {
+	
+	private volatile int trains = 0;
+	private volatile boolean servingTrucksDuringTrainWork = false;
+	private final AtomicInteger version = new AtomicInteger(0);
+	
+	TerminalCraneResource() {
+	}
+	
+	void trainArrives() {
+		this.trains++;
+		this.version.incrementAndGet();
+	}
+	
+	void trainDeparts() {
+		this.trains--;
+		this.version.incrementAndGet();
+	}
+	
+	void setServingTrucksDuringTrainWork(boolean servingTrucksDuringTrainWork) {
+		if (this.servingTrucksDuringTrainWork != servingTrucksDuringTrainWork) {
+			this.servingTrucksDuringTrainWork = servingTrucksDuringTrainWork;
+			this.version.incrementAndGet();
+		}
+	}
+	
+	void reset() {
+		this.trains = 0;
+		this.servingTrucksDuringTrainWork = false;
+		this.version.incrementAndGet();
+	}
+	
+	/**
+	 * @return the number of trains which are currently at the terminal
+	 */
+	public int getTrains() {
+		return this.trains;
+	}
+	
+	/**
+	 * @return the factor by which the time per container increases because the crane is shared, at least 1
+	 */
+	public double getContainerTimeFactor() {
+		int users = this.trains + (this.servingTrucksDuringTrainWork ? 1 : 0);
+		return Math.max(1, users);
+	}
+	
+	/**
+	 * @return a number which changes whenever the allocation of the crane changes
+	 */
+	public int getVersion() {
+		return this.version.get();
+	}
+
+}
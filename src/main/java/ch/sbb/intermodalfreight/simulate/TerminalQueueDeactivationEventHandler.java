@@ -1,14 +1,17 @@
 package ch.sbb.intermodalfreight.simulate;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.IdMap;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.events.LinkEnterEvent;
@@ -28,15 +31,14 @@ import org.matsim.api.core.v01.events.handler.TransitDriverStartsEventHandler;
 import org.matsim.api.core.v01.events.handler.VehicleEntersTrafficEventHandler;
 import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
 import org.matsim.api.core.v01.network.Link;
-import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.api.core.v01.population.Plan;
 import org.matsim.core.api.experimental.events.AgentWaitingForPtEvent;
 import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
 import org.matsim.core.api.experimental.events.VehicleDepartsAtFacilityEvent;
 import org.matsim.core.api.experimental.events.handler.AgentWaitingForPtEventHandler;
 import org.matsim.core.api.experimental.events.handler.VehicleArrivesAtFacilityEventHandler;
 import org.matsim.core.api.experimental.events.handler.VehicleDepartsAtFacilityEventHandler;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
 import org.matsim.core.mobsim.framework.events.MobsimInitializedEvent;
 import org.matsim.core.mobsim.framework.listeners.MobsimBeforeSimStepListener;
@@ -44,13 +46,15 @@ import org.matsim.core.mobsim.framework.listeners.MobsimInitializedListener;
 import org.matsim.core.mobsim.qsim.interfaces.Netsim;
 import org.matsim.core.mobsim.qsim.interfaces.SignalGroupState;
 import org.matsim.core.mobsim.qsim.interfaces.SignalizeableItem;
-import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import org.matsim.vehicles.Vehicle;
 import org.matsim.vehicles.VehicleType;
 
+import ch.sbb.intermodalfreight.prepare.supply.GenerateCargoSupply;
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.CraneServiceApproach;
+
 /**
  * 
  * Handles the crane dynamics at the terminals.
@@ -60,7 +64,13 @@ import org.matsim.vehicles.VehicleType;
  *   (= if there is a train in the terminal and there are containers waiting to be loaded or unloaded between the stack and the train).
  * - The truck-stack queue will be activated again if crane is no longer busy handling the train-stack queue
  *   (= if there is no train in the terminal or if there are no more containers waiting to be loaded or unloaded between the stack and the train).
+ *   This is the default {@link TrainPriorityCraneServicePolicy}, other rules can be provided as a {@link CraneServicePolicy}.
  * - The truck-stack queue is deactivated and activated by using a dynamic signal which is placed on the end of the truck-stack queue link.
+ * - The number of pending alighters and boarders is updated in the event handlers. The signal is only switched in the next time step
+ *   if one of these counters crosses zero, i.e. there is no per time step evaluation of all terminals.
+ * - The state is partitioned per terminal. The tracking state is only written by the thread which processes the events,
+ *   the signals are only switched by the mobsim thread. The pending train work is handed over via a lock-free queue,
+ *   which allows to use the parallel events manager.
  * 
  * @author ikaddoura
  *
@@ -84,80 +94,202 @@ public class TerminalQueueDeactivationEventHandler implements
 	
 	private final String carKVLegPrefix = "carKV_";
 
-	private final Map<Id<Link>, SignalizeableItem> queueLink2signal;
-	private final Set<Id<Vehicle>> transitVehicles;
-	private final Set<Id<Person>> transitDrivers;
-	private final Map<Id<Vehicle>, Id<TransitRoute>> train2route;
-	private final Map<Id<TransitStopFacility>, Set<Id<Person>>> terminal2waitingPersons;
-	private final Map<Id<TransitStopFacility>, Set<Id<Vehicle>>> terminal2trains;
-	private final Map<Id<Vehicle>, Id<TransitStopFacility>> train2terminal;
-	private final Map<Id<Vehicle>, Set<Id<Person>>> train2passengers;
-	private final Map<Id<Person>, Integer> person2legCounter;
-	private final Map<Id<Person>, Id<Link>> person2destinationStopLink;
-	private final Map<Id<Person>, String> person2nextTrainRouteDescription;
-	private final Map<Id<Link>, Set<Id<Vehicle>>> link2vehicles;
-	private final Map<Id<Vehicle>, Id<Person>> vehicle2person;	
-	private final Map<Id<TransitStopFacility>, QueueStatus> terminal2queueStatus;
+	// only accessed by the events processing thread
+	// index-based state (Id.index()), allocated once and reset in each iteration
+	private final BitSet transitVehicles;
+	private final BitSet transitDrivers;
+	private final BitSet pendingBoarders;
+	private int[] person2legCounter;
+	private int[] train2occupancy;
+	private int[] train2capacity;
+	
+	// dense index of the links of the transit stops
+	private final IdMap<Link, Integer> stopLink2index;
+	private final IdMap<TransitStopFacility, Integer> stop2stopLinkIndex;
+	
+	private final IdMap<Vehicle, Id<TransitRoute>> train2route;
+	private final IdMap<Vehicle, Id<TransitStopFacility>> train2terminal;
+	private final IdMap<Vehicle, int[]> train2alightersPerStopLink;
+	private int[] person2destinationStopLink;
+	private final IdMap<Person, Id<TransitRoute>> person2nextTrainRoute;
+	private final IdMap<Vehicle, Id<Person>> vehicle2person;
 	
-	private final Set<Id<Link>> relevantLinks;
-	private final Map<Id<TransitStopFacility>, Set<Link>> terminal2queueLinks;
-	private final Map<Id<TransitStopFacility>, Set<Link>> terminal2stackLinks;
-	private final Map<Id<Vehicle>, Integer> train2capacity;	
+	// the control of each terminal, addressed by a dense terminal index; created once and not modified after the construction
+	private final TerminalControl[] terminalControls;
+	private final IdMap<TransitStopFacility, TerminalControl> terminals;
+	private final IdMap<Link, TerminalControl> stackLink2terminal;
+	private final IdMap<Link, TerminalControl> queueLink2terminal;
+	
+	// terminals with a changed pending train work, written by the events processing thread and drained by the mobsim thread
+	private final Queue<TerminalControl> terminalsWithQueueStatusChange;
+	
+	// terminals for which the crane service policy has to be evaluated at a later time, only accessed by the mobsim thread
+	private final BitSet terminalsWithScheduledDecision;
 
+	private final SelectedPlanLegCache legCache;
+	private boolean terminalLinksByNamingConvention = false;
 
 	private final Scenario scenario;
+	private final TerminalCraneMetrics metrics;
+	private final CraneServicePolicy craneServicePolicy;
 	
 	private enum QueueStatus {
 		Active, Deactive
 	}
 	
+	/**
+	 * The state and signals of a single terminal. The waiting persons, trains, stack persons and counters are owned by the events processing thread,
+	 * the queue status and the signals are owned by the mobsim thread. The crane resource and the pending train work are published to the other threads.
+	 */
+	private static final class TerminalControl {
+		
+		private final int index;
+		private final Id<TransitStopFacility> id;
+		private final Link[] queueLinks;
+		private final Link[] stackLinks;
+		
+		// events processing thread
+		private final Set<Id<Person>> waitingPersons = new HashSet<>();
+		private final Set<Id<Person>> stackPersons = new HashSet<>();
+		private final Set<Id<Vehicle>> trains = new HashSet<>();
+		private int pendingAlighters = 0;
+		private int pendingBoarders = 0;
+		
+		// published to the mobsim thread and the transit stop handlers
+		private final TerminalCraneResource craneResource = new TerminalCraneResource();
+		private volatile int queueVehicles = 0;
+		private volatile int stackVehicles = 0;
+		private volatile boolean trainWorkPending = false;
+		private final AtomicBoolean queuedForStatusChange = new AtomicBoolean(false);
+		
+		// mobsim thread; the signals are resolved once per mobsim since each mobsim has its own network
+		private final SignalizeableItem[] signals;
+		private QueueStatus queueStatus = QueueStatus.Active;
+		private double queueStatusSince = 0.;
+		private double nextDecisionTime = Double.POSITIVE_INFINITY;
+		
+		private TerminalControl(int index, Id<TransitStopFacility> id, Set<Link> queueLinks, Set<Link> stackLinks) {
+			this.index = index;
+			this.id = id;
+			this.queueLinks = queueLinks.toArray(new Link[0]);
+			this.stackLinks = stackLinks.toArray(new Link[0]);
+			this.signals = new SignalizeableItem[this.queueLinks.length];
+		}
+		
+		private void setSignalStates(SignalGroupState state) {
+			for (SignalizeableItem signal : this.signals) {
+				signal.setSignalStateAllTurningMoves(state);
+			}
+		}
+		
+		private void reset() {
+			this.waitingPersons.clear();
+			this.stackPersons.clear();
+			this.trains.clear();
+			this.pendingAlighters = 0;
+			this.pendingBoarders = 0;
+			this.craneResource.reset();
+			this.queueVehicles = 0;
+			this.stackVehicles = 0;
+			this.trainWorkPending = false;
+			this.queuedForStatusChange.set(false);
+			this.queueStatus = QueueStatus.Active;
+			this.queueStatusSince = 0.;
+			this.nextDecisionTime = Double.POSITIVE_INFINITY;
+		}
+	}
+	
 	public TerminalQueueDeactivationEventHandler(Scenario scenario) {
+		this(scenario, null);
+	}
+	
+	/**
+	 * Uses the crane service policy given in the {@link IntermodalFreightConfigGroup}.
+	 * 
+	 * @param metrics the crane activity metrics, may be null
+	 */
+	public TerminalQueueDeactivationEventHandler(Scenario scenario, TerminalCraneMetrics metrics) {
+		this(scenario, metrics, createCraneServicePolicy(ConfigUtils.addOrGetModule(scenario.getConfig(), IntermodalFreightConfigGroup.class)));
+	}
+	
+	/**
+	 * @param metrics the crane activity metrics, may be null
+	 * @param craneServicePolicy decides whether the crane serves the trucks or the trains
+	 */
+	public TerminalQueueDeactivationEventHandler(Scenario scenario, TerminalCraneMetrics metrics, CraneServicePolicy craneServicePolicy) {
 		this.scenario = scenario;	
+		this.metrics = metrics;
+		this.craneServicePolicy = craneServicePolicy;
+		this.legCache = new SelectedPlanLegCache(carKVLegPrefix);
+		
+		terminalControls = new TerminalControl[this.scenario.getTransitSchedule().getFacilities().size()];
+		terminals = new IdMap<>(TransitStopFacility.class);
+		stackLink2terminal = new IdMap<>(Link.class);
+		queueLink2terminal = new IdMap<>(Link.class);
+		transitVehicles = new BitSet(Id.getNumberOfIds(Vehicle.class));
+		transitDrivers = new BitSet(Id.getNumberOfIds(Person.class));
+		pendingBoarders = new BitSet(Id.getNumberOfIds(Person.class));
+		person2legCounter = new int[Id.getNumberOfIds(Person.class)];
+		train2occupancy = new int[Id.getNumberOfIds(Vehicle.class)];
+		train2capacity = new int[Id.getNumberOfIds(Vehicle.class)];
 		
-		relevantLinks = new HashSet<>();
-		terminal2queueLinks = new HashMap<>();
-		terminal2stackLinks = new HashMap<>();
-		queueLink2signal = new HashMap<>();
-		transitVehicles = new HashSet<>();
-		transitDrivers = new HashSet<>();
-		train2capacity = new HashMap<>();
-		
-		train2route = new HashMap<>();
-		terminal2waitingPersons = new HashMap<>();
-		terminal2trains = new HashMap<>();
-		train2terminal = new HashMap<>();
-		train2passengers = new HashMap<>();
-		person2legCounter = new HashMap<>();
-		person2destinationStopLink = new HashMap<>();
-		person2nextTrainRouteDescription = new HashMap<>();
-		link2vehicles = new HashMap<>();
-		vehicle2person = new HashMap<>();	
-		terminal2queueStatus = new HashMap<>();
+		train2route = new IdMap<>(Vehicle.class);
+		train2terminal = new IdMap<>(Vehicle.class);
+		train2alightersPerStopLink = new IdMap<>(Vehicle.class);
+		person2destinationStopLink = new int[Id.getNumberOfIds(Person.class)];
+		stopLink2index = new IdMap<>(Link.class);
+		stop2stopLinkIndex = new IdMap<>(TransitStopFacility.class);
+		person2nextTrainRoute = new IdMap<>(Person.class);
+		vehicle2person = new IdMap<>(Vehicle.class);
+		terminalsWithQueueStatusChange = new ConcurrentLinkedQueue<>();
+		terminalsWithScheduledDecision = new BitSet(terminalControls.length);
 		
 		for (Id<Vehicle> vehicleId : this.scenario.getTransitVehicles().getVehicles().keySet()) {
 			Vehicle vehicle = this.scenario.getTransitVehicles().getVehicles().get(vehicleId);
 			VehicleType vehicleType = vehicle.getType();
 			int standingRoom = vehicleType.getCapacity().getStandingRoom();
 			int seats = vehicleType.getCapacity().getSeats();
-			train2capacity.put(vehicleId, standingRoom + seats);
+			train2capacity[vehicleId.index()] = standingRoom + seats;
+		}
+		
+		for (TransitStopFacility terminal : this.scenario.getTransitSchedule().getFacilities().values()) {
+			if (!this.stopLink2index.containsKey(terminal.getLinkId())) {
+				this.stopLink2index.put(terminal.getLinkId(), this.stopLink2index.size());
+			}
+			this.stop2stopLinkIndex.put(terminal.getId(), this.stopLink2index.get(terminal.getLinkId()));
+		}
+		
+		// the number of passengers per train who want to get off at each transit stop link
+		for (Id<Vehicle> vehicleId : this.scenario.getTransitVehicles().getVehicles().keySet()) {
+			this.train2alightersPerStopLink.put(vehicleId, new int[this.stopLink2index.size()]);
 		}
 				
 		for (TransitStopFacility terminal : this.scenario.getTransitSchedule().getFacilities().values()) {
 			
 			// initialize queue links
-			Set<Link> queueLinks = getQueueLinks(terminal.getId());
-			this.terminal2queueLinks.put(terminal.getId(), queueLinks);
+			Set<Link> queueLinks = getLinksFromStopAttribute(terminal, GenerateCargoSupply.QUEUE_LINKS_ATTRIBUTE);
+			if (queueLinks == null) {
+				logMissingTerminalLinkAttributes(terminal);
+				queueLinks = getQueueLinks(terminal.getId());
+			}
 			
 			// initialize stack links
-			Set<Link> stackLinks = getStackLinks(terminal.getId());
-			this.terminal2stackLinks.put(terminal.getId(), stackLinks);
-			
-			// initialize relevant links
-			for (Link link : queueLinks) {
-				this.relevantLinks.add(link.getId());
+			Set<Link> stackLinks = getLinksFromStopAttribute(terminal, GenerateCargoSupply.STACK_LINKS_ATTRIBUTE);
+			if (stackLinks == null) {
+				logMissingTerminalLinkAttributes(terminal);
+				stackLinks = getStackLinks(terminal.getId());
 			}
+			
+			TerminalControl terminalControl = new TerminalControl(this.terminals.size(), terminal.getId(), queueLinks, stackLinks);
+			this.terminalControls[terminalControl.index] = terminalControl;
+			this.terminals.put(terminal.getId(), terminalControl);
+			
+			// initialize the stack link lookup; only the stack links are relevant for the boarding agents
 			for (Link link : stackLinks) {
-				this.relevantLinks.add(link.getId());
+				this.stackLink2terminal.put(link.getId(), terminalControl);
+			}
+			for (Link link : queueLinks) {
+				this.queueLink2terminal.put(link.getId(), terminalControl);
 			}
 		}
 	}
@@ -167,89 +299,138 @@ public class TerminalQueueDeactivationEventHandler implements
 
 		// initialize and reset the information from the previous iteration
 		
-		queueLink2signal.clear();
 		transitVehicles.clear();
 		transitDrivers.clear();
+		pendingBoarders.clear();
+		
+		// persons and vehicles may have been created after the construction of this handler
+		person2legCounter = ensureCapacity(person2legCounter, Id.getNumberOfIds(Person.class), -1);
+		train2occupancy = ensureCapacity(train2occupancy, Id.getNumberOfIds(Vehicle.class), 0);
+		person2destinationStopLink = ensureCapacity(person2destinationStopLink, Id.getNumberOfIds(Person.class), -1);
+		Arrays.fill(person2legCounter, -1);
+		Arrays.fill(train2occupancy, 0);
+		Arrays.fill(person2destinationStopLink, -1);
+		for (int[] alightersPerStopLink : train2alightersPerStopLink.values()) {
+			Arrays.fill(alightersPerStopLink, 0);
+		}
+		
 		train2route.clear();
-		terminal2waitingPersons.clear();
-		terminal2trains.clear();
 		train2terminal.clear();
-		train2passengers.clear();
-		person2legCounter.clear();
-		person2destinationStopLink.clear();
-		person2nextTrainRouteDescription.clear();
-		link2vehicles.clear();
+		person2nextTrainRoute.clear();
 		vehicle2person.clear();	
-		terminal2queueStatus.clear();
+		terminalsWithQueueStatusChange.clear();
+		terminalsWithScheduledDecision.clear();
 		
-		// initialize queue status
-		for (TransitStopFacility terminal : this.scenario.getTransitSchedule().getFacilities().values()) {
-			this.terminal2queueStatus.put(terminal.getId(), QueueStatus.Active);
+		// initialize queue status and counters
+		for (TerminalControl terminal : this.terminalControls) {
+			terminal.reset();
 		}
 		
+		if (this.metrics != null) {
+			this.metrics.reset();
+		}
 	}
 
 	@Override
 	public void notifyMobsimInitialized(MobsimInitializedEvent e) {
+		
+		// the selected plans don't change during the mobsim
+		this.legCache.build(this.scenario.getPopulation());
+		
 		Netsim mobsim = (Netsim) e.getQueueSimulation() ;
-		for (Id<TransitStopFacility> stopId : scenario.getTransitSchedule().getFacilities().keySet()) {
-			for (Link link : this.terminal2queueLinks.get(stopId)) {
-				SignalizeableItem signalLink = (SignalizeableItem) mobsim.getNetsimNetwork().getNetsimLink(link.getId()) ;
+		double startTime = this.scenario.getConfig().qsim().getStartTime().orElse(0.);
+		for (TerminalControl terminal : this.terminalControls) {
+			terminal.queueStatusSince = startTime;
+			for (int i = 0; i < terminal.queueLinks.length; i++) {
+				SignalizeableItem signalLink = (SignalizeableItem) mobsim.getNetsimNetwork().getNetsimLink(terminal.queueLinks[i].getId()) ;
 				signalLink.setSignalized(true);
 				signalLink.setSignalStateAllTurningMoves(SignalGroupState.GREEN);
-				this.queueLink2signal.put(link.getId(), signalLink);
+				terminal.signals[i] = signalLink;
 			}
 		}
 	}
 	
 	@Override
 	public void notifyMobsimBeforeSimStep(MobsimBeforeSimStepEvent event) {
-		for (Id<TransitStopFacility> stopFacilityId : this.terminal2trains.keySet()) {
-			
-			if (this.terminal2trains.get(stopFacilityId).isEmpty()) {
-				activateQueue(stopFacilityId, event.getSimulationTime());
-				
-			} else {
-				
-				// check if there is an agent who wants to get out	
-				// check if there is an agent in the stack who wants to get into the train				
-				if (isThereATrainWithAlightingAgents(stopFacilityId) || isTheStackWithBoardingAgents(stopFacilityId)) {
-					// deactivate the queue			
-					deactivateQueue(stopFacilityId, event.getSimulationTime());
-					
-				} else {
-					// activate the queue		
-					activateQueue(stopFacilityId, event.getSimulationTime());
-				}			
+		
+		double now = event.getSimulationTime();
+		
+		if (this.metrics != null && this.metrics.isSampleTime(now)) {
+			for (TerminalControl terminal : this.terminalControls) {
+				this.metrics.recordQueueSample(terminal.id, now, terminal.queueVehicles, terminal.stackVehicles);
+			}
+		}
+		
+		// Only terminals for which the pending alighters or boarders crossed zero since the last time step need to be touched...
+		TerminalControl terminal;
+		while ((terminal = this.terminalsWithQueueStatusChange.poll()) != null) {
+			// release the terminal before reading the status, a later change will then be queued again
+			terminal.queuedForStatusChange.set(false);
+			applyCraneServicePolicy(terminal, now);
+		}
+		
+		// ... and terminals for which the crane service policy has requested a decision at this time.
+		if (this.terminalsWithScheduledDecision.isEmpty()) return;
+		
+		for (int i = this.terminalsWithScheduledDecision.nextSetBit(0); i >= 0; i = this.terminalsWithScheduledDecision.nextSetBit(i + 1)) {
+			if (this.terminalControls[i].nextDecisionTime <= now) {
+				applyCraneServicePolicy(this.terminalControls[i], now);
 			}
 		}
 	}
+	
+	private void applyCraneServicePolicy(TerminalControl terminal, double now) {
+		boolean trainWorkPending = terminal.trainWorkPending;
+		
+		if (this.craneServicePolicy.isQueueActive(trainWorkPending, terminal.queueStatus == QueueStatus.Active, terminal.queueStatusSince, now)) {
+			activateQueue(terminal, now);
+		} else {
+			// there is an agent who wants to get out or an agent in the stack who wants to get into the train
+			deactivateQueue(terminal, now);
+		}
+		
+		// the trucks obtain a share of the crane if they are served although there is work for the trains
+		terminal.craneResource.setServingTrucksDuringTrainWork(trainWorkPending && terminal.queueStatus == QueueStatus.Active);
+		
+		terminal.nextDecisionTime = this.craneServicePolicy.getNextDecisionTime(trainWorkPending, terminal.queueStatus == QueueStatus.Active, terminal.queueStatusSince);
+		if (terminal.nextDecisionTime == Double.POSITIVE_INFINITY) {
+			this.terminalsWithScheduledDecision.clear(terminal.index);
+		} else {
+			this.terminalsWithScheduledDecision.set(terminal.index);
+		}
+	}
 
 	@Override
 	public void handleEvent(TransitDriverStartsEvent event) {
-		transitVehicles.add(event.getVehicleId());
-		transitDrivers.add(event.getDriverId());
+		transitVehicles.set(event.getVehicleId().index());
+		transitDrivers.set(event.getDriverId().index());
 		train2route.put(event.getVehicleId(), event.getTransitRouteId());
-		
-		// initialize
-		this.train2passengers.put(event.getVehicleId(), new HashSet<>());
+
+		// the vehicle starts a new departure, i.e. the passengers of a previous departure of the same vehicle are gone
+		train2occupancy = ensureCapacity(train2occupancy, event.getVehicleId().index() + 1, 0);
+		train2occupancy[event.getVehicleId().index()] = 0;
+		int[] alightersPerStopLink = train2alightersPerStopLink.get(event.getVehicleId());
+		if (alightersPerStopLink != null) Arrays.fill(alightersPerStopLink, 0);
 	}
 
 	@Override
 	public void handleEvent(VehicleArrivesAtFacilityEvent event) {
-		if (transitVehicles.contains(event.getVehicleId())) {
+		if (transitVehicles.get(event.getVehicleId().index())) {
 			// transit vehicle arrives at a facility
 			
 			this.train2terminal.put(event.getVehicleId(), event.getFacilityId());
+			TerminalControl terminal = this.terminals.get(event.getFacilityId());
 						
 			// update the information about which train is at which terminal
-			if (this.terminal2trains.get(event.getFacilityId()) == null) {
-				this.terminal2trains.put(event.getFacilityId(), new HashSet<>());
+			if (terminal.trains.add(event.getVehicleId())) {
+				terminal.craneResource.trainArrives();
+			}
+			if (this.metrics != null) {
+				this.metrics.recordTrainArrival(event.getVehicleId(), event.getTime());
 			}
-			this.terminal2trains.get(event.getFacilityId()).add(event.getVehicleId());
 			
 			// check if we have to update the queue
-			int trainsAtTerminal = terminal2trains.get(event.getFacilityId()).size();
+			int trainsAtTerminal = terminal.trains.size();
 			
 			if (trainsAtTerminal == 1) {
 				// everything OK				
@@ -257,25 +438,40 @@ public class TerminalQueueDeactivationEventHandler implements
 			} else {
 				log.info("There are " + trainsAtTerminal + " trains at terminal " + event.getFacilityId().toString() +
 						" at time " + Time.writeTime(event.getTime(), Time.TIMEFORMAT_HHMMSS));			
-			}				
+			}
+			
+			// the passengers who want to get off here are now pending alighters
+			addPendingAlighters(terminal, getAlightingPassengers(event.getVehicleId(), event.getFacilityId()));
+			
+			// the agents in the stack may want to board the arriving train
+			recountPendingBoarders(terminal);
 		}
 	}
 
 	@Override
 	public void handleEvent(VehicleDepartsAtFacilityEvent event) {
-		if (transitVehicles.contains(event.getVehicleId())) {
+		if (transitVehicles.get(event.getVehicleId().index())) {
 			// transit vehicle departs at a facility
 			
 			this.train2terminal.remove(event.getVehicleId());
+			TerminalControl terminal = this.terminals.get(event.getFacilityId());
 			
 			// update the information about which train is at which terminal
-			if (this.terminal2trains.get(event.getFacilityId()) == null) {
+			if (!terminal.trains.remove(event.getVehicleId())) {
 				throw new RuntimeException("Train departs without arriving. Aborting...");
 			}
-			this.terminal2trains.get(event.getFacilityId()).remove(event.getVehicleId());
+			terminal.craneResource.trainDeparts();
+			if (this.metrics != null) {
+				this.metrics.recordTrainDeparture(terminal.id, event.getVehicleId(), event.getTime(), terminal.queueVehicles, terminal.stackVehicles);
+			}
 			
 			// TODO: check if the train has departed too late
-
+			
+			// passengers who did not manage to get off are no longer pending alighters at this terminal
+			addPendingAlighters(terminal, -1 * getAlightingPassengers(event.getVehicleId(), event.getFacilityId()));
+			
+			// the agents in the stack can no longer board the departed train
+			recountPendingBoarders(terminal);
 		}
 	}
 	
@@ -290,10 +486,19 @@ public class TerminalQueueDeactivationEventHandler implements
 	}
 
 	private void vehicleLeavesLink(Id<Vehicle> vehicleId, Id<Link> linkId) {
-		if (this.transitVehicles.contains(vehicleId) || !this.relevantLinks.contains(linkId)) {
+		if (this.metrics != null) {
+			countVehicles(vehicleId, linkId, -1);
+		}
+		
+		TerminalControl terminal = this.stackLink2terminal.get(linkId);
+		if (this.transitVehicles.get(vehicleId.index()) || terminal == null) {
 			// ignore transit vehicles here and also ignore links that are not relevant
 		} else {
-			this.link2vehicles.get(linkId).remove(vehicleId);
+			Id<Person> personId = this.vehicle2person.get(vehicleId);
+			if (personId != null) {
+				terminal.stackPersons.remove(personId);
+				removePendingBoarder(terminal, personId);
+			}
 		}
 	}
 
@@ -308,28 +513,66 @@ public class TerminalQueueDeactivationEventHandler implements
 	}
 	
 	private void vehicleEntersLink(Id<Vehicle> vehicleId, Id<Link> linkId) {
-		if (this.transitVehicles.contains(vehicleId) || !this.relevantLinks.contains(linkId)) {
+		if (this.metrics != null) {
+			countVehicles(vehicleId, linkId, 1);
+		}
+		
+		TerminalControl terminal = this.stackLink2terminal.get(linkId);
+		if (this.transitVehicles.get(vehicleId.index()) || terminal == null) {
 			// ignore transit vehicles here and also ignore links that are not relevant
 		} else {
-			if (this.link2vehicles.get(linkId) == null) {
-				Set<Id<Vehicle>> vehicles = new HashSet<>();
-				vehicles.add(vehicleId);
-				this.link2vehicles.put(linkId, vehicles);
+			Id<Person> personId = this.vehicle2person.get(vehicleId);
+			if (personId != null) {
+				terminal.stackPersons.add(personId);
+				addPendingBoarderIfBoarding(terminal, personId);
 			}
-			this.link2vehicles.get(linkId).add(vehicleId);
+		}
+	}
+
+	/**
+	 * Counts the vehicles on the queue and stack links, only required for the crane metrics.
+	 */
+	private void countVehicles(Id<Vehicle> vehicleId, Id<Link> linkId, int vehicles) {
+		if (this.transitVehicles.get(vehicleId.index())) return;
+		
+		TerminalControl queueTerminal = this.queueLink2terminal.get(linkId);
+		if (queueTerminal != null) {
+			queueTerminal.queueVehicles += vehicles;
+		}
+		TerminalControl stackTerminal = this.stackLink2terminal.get(linkId);
+		if (stackTerminal != null) {
+			stackTerminal.stackVehicles += vehicles;
 		}
 	}
 
 	@Override
 	public void handleEvent(PersonLeavesVehicleEvent event) {
-		if (this.transitVehicles.contains(event.getVehicleId())) {
+		if (this.transitVehicles.get(event.getVehicleId().index())) {
 			// transit vehicle
 			
-			if (!this.transitDrivers.contains(event.getPersonId())) {
+			if (!this.transitDrivers.get(event.getPersonId().index())) {
 				// not the transit driver
 				
+				boolean trainWasFull = isFull(event.getVehicleId());
+				
 				// remove the person from our passenger tracker
-				this.train2passengers.get(event.getVehicleId()).remove(event.getPersonId());
+				this.train2occupancy[event.getVehicleId().index()]--;
+				int destinationStopLinkIndex = this.person2destinationStopLink[event.getPersonId().index()];
+				if (destinationStopLinkIndex >= 0) {
+					this.train2alightersPerStopLink.get(event.getVehicleId())[destinationStopLinkIndex]--;
+				}
+				
+				Id<TransitStopFacility> stopId = this.train2terminal.get(event.getVehicleId());
+				if (stopId != null) {
+					TerminalControl terminal = this.terminals.get(stopId);
+					if (destinationStopLinkIndex >= 0 && destinationStopLinkIndex == this.stop2stopLinkIndex.get(stopId)) {
+						addPendingAlighters(terminal, -1);
+					}
+					if (trainWasFull) {
+						// the train has available capacities again
+						recountPendingBoarders(terminal);
+					}
+				}
 			}
 		}
 	}
@@ -337,30 +580,45 @@ public class TerminalQueueDeactivationEventHandler implements
 	@Override
 	public void handleEvent(PersonEntersVehicleEvent event) {
 		
-		if (this.transitVehicles.contains(event.getVehicleId())) {
+		if (this.transitVehicles.get(event.getVehicleId().index())) {
 			// transit vehicle
 			
-			if (!this.transitDrivers.contains(event.getPersonId())) {
+			if (!this.transitDrivers.get(event.getPersonId().index())) {
 				// not the transit driver
 				
 				// add the person to our passenger tracker
-				this.train2passengers.get(event.getVehicleId()).add(event.getPersonId());
+				this.train2occupancy[event.getVehicleId().index()]++;
 				
 				// find out where the agent wants to get off the train
-				int currentLegNr = this.person2legCounter.get(event.getPersonId());
-				Plan selectedPlan = this.scenario.getPopulation().getPersons().get(event.getPersonId()).getSelectedPlan();
-				Leg currentLeg = TripStructureUtils.getLegs(selectedPlan).get(currentLegNr);
+				int currentLegNr = this.person2legCounter[event.getPersonId().index()];
+				String currentLegMode = this.legCache.getMode(event.getPersonId(), currentLegNr);
 				
-				if (!currentLeg.getMode().equals(TransportMode.pt)) {
-					throw new RuntimeException("Expecting a pt leg at position " + currentLegNr + " for agent " + event.getPersonId() + " : " + currentLeg.toString() );
+				if (!currentLegMode.equals(TransportMode.pt)) {
+					throw new RuntimeException("Expecting a pt leg at position " + currentLegNr + " for agent " + event.getPersonId() + " : " + currentLegMode );
 				}
 				
-				Id<Link> destinationLink = currentLeg.getRoute().getEndLinkId();
-				this.person2destinationStopLink.put(event.getPersonId(), destinationLink);
+				Id<Link> destinationLink = this.legCache.getEndLinkId(event.getPersonId(), currentLegNr);
+				Integer destinationStopLinkIndex = this.stopLink2index.get(destinationLink);
+				if (destinationStopLinkIndex == null) {
+					throw new RuntimeException("The pt leg of agent " + event.getPersonId() + " does not end at a transit stop link: " + destinationLink);
+				}
+				this.person2destinationStopLink = ensureCapacity(this.person2destinationStopLink, event.getPersonId().index() + 1, -1);
+				this.person2destinationStopLink[event.getPersonId().index()] = destinationStopLinkIndex;
+				this.train2alightersPerStopLink.get(event.getVehicleId())[destinationStopLinkIndex]++;
 				
 				// a person entering a transit vehicle is no longer waiting, update this information
 				Id<TransitStopFacility> stopId = this.train2terminal.get(event.getVehicleId());
-				this.terminal2waitingPersons.get(stopId).remove(event.getPersonId());
+				TerminalControl terminal = this.terminals.get(stopId);
+				terminal.waitingPersons.remove(event.getPersonId());
+				removePendingBoarder(terminal, event.getPersonId());
+				
+				if (destinationStopLinkIndex.intValue() == this.stop2stopLinkIndex.get(stopId)) {
+					addPendingAlighters(terminal, 1);
+				}
+				if (isFull(event.getVehicleId())) {
+					// the remaining agents in the stack can no longer board this train
+					recountPendingBoarders(terminal);
+				}
 			}
 		} else {
 			// carKV mode etc.
@@ -370,176 +628,233 @@ public class TerminalQueueDeactivationEventHandler implements
 
 	@Override
 	public void handleEvent(PersonDepartureEvent event) {
-		if (this.person2legCounter.get(event.getPersonId()) == null) {
-			this.person2legCounter.put(event.getPersonId(), 0);
-		} else {
-			int legCount = this.person2legCounter.get(event.getPersonId());
-			this.person2legCounter.put(event.getPersonId(), legCount + 1);
-		}
+		// the leg counter is -1 before the first departure
+		int personIndex = event.getPersonId().index();
+		this.person2legCounter = ensureCapacity(this.person2legCounter, personIndex + 1, -1);
+		this.person2legCounter[personIndex]++;
 		
 		if (event.getLegMode().startsWith(carKVLegPrefix)) {
-			int currentLegNr = this.person2legCounter.get(event.getPersonId());
-			Plan selectedPlan = this.scenario.getPopulation().getPersons().get(event.getPersonId()).getSelectedPlan();
-			List<Leg> legs = TripStructureUtils.getLegs(selectedPlan);
-			
+			int currentLegNr = this.person2legCounter[personIndex];
 			int nextLegNr = currentLegNr + 1;
 			
-			if (legs.size() > nextLegNr) {			
+			if (this.legCache.getNumberOfLegs(event.getPersonId()) > nextLegNr) {			
 				// there is a following leg (the carKV leg was the access leg)
 				
-				Leg nextLeg = TripStructureUtils.getLegs(selectedPlan).get(nextLegNr);	
-				if (nextLeg.getMode().equals(TransportMode.pt)) {
-					this.person2nextTrainRouteDescription.put(event.getPersonId(), nextLeg.getRoute().getRouteDescription());
+				String nextLegMode = this.legCache.getMode(event.getPersonId(), nextLegNr);
+				if (nextLegMode.equals(TransportMode.pt)) {
+					// store the transit route once, the boarding checks only compare the route ids
+					Id<TransitRoute> nextTrainRouteId = this.legCache.getTransitRouteId(event.getPersonId(), nextLegNr);
+					if (nextTrainRouteId != null) {
+						this.person2nextTrainRoute.put(event.getPersonId(), nextTrainRouteId);
+					} else {
+						log.warn("Expecting a transit passenger route for the pt leg of agent " + event.getPersonId() + " - Leg nr. " + nextLegNr);
+						this.person2nextTrainRoute.remove(event.getPersonId());
+					}
 				} else {
 					log.warn("A leg with mode " + carKVLegPrefix + "... is expected to be followed by a pt leg. "
-							+ "Agent " + event.getPersonId() + " - Leg nr. " + currentLegNr + " nextLeg: " + nextLeg.toString());
+							+ "Agent " + event.getPersonId() + " - Leg nr. " + currentLegNr + " nextLeg mode: " + nextLegMode);
 					log.warn("Needs to be checked!!");
 				}
 				
 			} else {
 				// there is no following leg (the carKV leg was the egress leg)
 				// remove the person information, will be re-computed in the next person departure event
-				this.person2nextTrainRouteDescription.remove(event.getPersonId());
+				this.person2nextTrainRoute.remove(event.getPersonId());
 			}
 		}
 	}
 
 	@Override
 	public void handleEvent(AgentWaitingForPtEvent event) {
-		if (this.terminal2waitingPersons.get(event.getWaitingAtStopId()) == null) {
-			this.terminal2waitingPersons.put(event.getWaitingAtStopId(), new HashSet<>());
-		}
-		this.terminal2waitingPersons.get(event.getWaitingAtStopId()).add(event.getPersonId());
+		TerminalControl terminal = this.terminals.get(event.getWaitingAtStopId());
+		terminal.waitingPersons.add(event.getPersonId());
+		addPendingBoarderIfBoarding(terminal, event.getPersonId());
 	}
 	
-	private void activateQueue(Id<TransitStopFacility> facilityId, double time) {
-		if (this.terminal2queueStatus.get(facilityId) == QueueStatus.Active) {
+	private void activateQueue(TerminalControl terminal, double time) {
+		if (terminal.queueStatus == QueueStatus.Active) {
 			// nothing to do
 			
 		} else {
-			this.terminal2queueStatus.put(facilityId, QueueStatus.Active);
-
-			// log.debug("++++ Activate queue for " + facilityId + " at time " + Time.writeTime(time, Time.TIMEFORMAT_HHMMSS) + ": " + time);
+			terminal.queueStatus = QueueStatus.Active;
+			terminal.queueStatusSince = time;
+			if (this.metrics != null) {
+				this.metrics.recordQueueStatusChange(terminal.id, time, true, terminal.queueVehicles, terminal.stackVehicles);
+			}
 			
-			for (Link link : this.terminal2queueLinks.get(facilityId)) {
-				
-				this.queueLink2signal.get(link.getId()).setSignalStateAllTurningMoves(SignalGroupState.GREEN);
-			}			
+			terminal.setSignalStates(SignalGroupState.GREEN);			
 		}	
 	}
 	
-	private void deactivateQueue(Id<TransitStopFacility> facilityId, double time) {
+	private void deactivateQueue(TerminalControl terminal, double time) {
 		
-		if (this.terminal2queueStatus.get(facilityId) == QueueStatus.Deactive) {
+		if (terminal.queueStatus == QueueStatus.Deactive) {
 			// nothing to do
 			
 		} else {
-			this.terminal2queueStatus.put(facilityId, QueueStatus.Deactive);
-			
-			// log.debug("---- Deactivate queue for " + facilityId + " at time " + Time.writeTime(time, Time.TIMEFORMAT_HHMMSS) + ": " + time);
+			terminal.queueStatus = QueueStatus.Deactive;
+			terminal.queueStatusSince = time;
+			if (this.metrics != null) {
+				this.metrics.recordQueueStatusChange(terminal.id, time, false, terminal.queueVehicles, terminal.stackVehicles);
+			}
 						
-			for (Link link : this.terminal2queueLinks.get(facilityId)) {
-				
-				this.queueLink2signal.get(link.getId()).setSignalStateAllTurningMoves(SignalGroupState.RED);					
-			}	
+			terminal.setSignalStates(SignalGroupState.RED);	
 		}
 	}
 	
+	private void addPendingAlighters(TerminalControl terminal, int alighters) {
+		if (alighters == 0) return;
+		terminal.pendingAlighters += alighters;
+		updateTrainWorkPending(terminal);
+	}
 	
-
-	private boolean isTheStackWithBoardingAgents(Id<TransitStopFacility> stopFacilityId) {
+	private void addPendingBoarderIfBoarding(TerminalControl terminal, Id<Person> personId) {
+		if (!this.pendingBoarders.get(personId.index()) && agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(terminal, personId)) {
+			// This agent who is in the stack, in particular on one of the links between the queue and the transit stop,
+			// wants to board one of the trains which is currently at the terminal.
+			this.pendingBoarders.set(personId.index());
+			terminal.pendingBoarders++;
+			updateTrainWorkPending(terminal);
+		}
+	}
+	
+	private void removePendingBoarder(TerminalControl terminal, Id<Person> personId) {
+		if (this.pendingBoarders.get(personId.index())) {
+			this.pendingBoarders.clear(personId.index());
+			terminal.pendingBoarders--;
+			updateTrainWorkPending(terminal);
+		}
+	}
+	
+	/**
+	 * Re-evaluates the agents in the stack of a terminal. Only required if the trains at the terminal or their available capacities have changed.
+	 */
+	private void recountPendingBoarders(TerminalControl terminal) {
 		
-		// (1) check the vehicles/persons on the links
-		Set<Link> stackLinks = this.terminal2stackLinks.get(stopFacilityId);			
-		for (Link link : stackLinks) {
-			if (this.link2vehicles.get(link.getId()) == null) {
-				// no information for that link
-			} else {
-				// there are vehicles on that link we need to check
-				
-				for (Id<Vehicle> vehicleId : this.link2vehicles.get(link.getId())) {
-					Id<Person> personId = this.vehicle2person.get(vehicleId);
-					if (agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(stopFacilityId, personId)) {
-						// This agent who is in the stack, in particular on one of the links between the queue and the transit stop,
-						// wants to board one of the trains which is currently at the terminal.
-						
-						return true;
-					}
-				}
-			}
+		// reset the agents in the stack...
+		for (Id<Person> personId : terminal.stackPersons) {
+			this.pendingBoarders.clear(personId.index());
+		}
+		for (Id<Person> personId : terminal.waitingPersons) {
+			this.pendingBoarders.clear(personId.index());
 		}
 		
-		// (2) also check the agents who have left the link and are still waiting to board the train
-		if (this.terminal2waitingPersons.get(stopFacilityId) == null) {
-			// no agent is waiting a the terminal
-			
-		} else {
-			// there are agents waiting at the terminal we have to check
-			
-			for (Id<Person> personId : this.terminal2waitingPersons.get(stopFacilityId)) {
-				if (agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(stopFacilityId, personId)) {
-					// This agent who is in the stack, in particular on one of the links between the queue and the transit stop,
-					// wants to board one of the trains which is currently at the terminal.
-					
-					return true;
-				}
+		// ... and count them again
+		int boarders = 0;
+		for (Id<Person> personId : terminal.stackPersons) {
+			if (!this.pendingBoarders.get(personId.index()) && agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(terminal, personId)) {
+				this.pendingBoarders.set(personId.index());
+				boarders++;
+			}
+		}
+		for (Id<Person> personId : terminal.waitingPersons) {
+			if (!this.pendingBoarders.get(personId.index()) && agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(terminal, personId)) {
+				this.pendingBoarders.set(personId.index());
+				boarders++;
 			}
 		}
 		
-		return false;
+		terminal.pendingBoarders = boarders;
+		updateTrainWorkPending(terminal);
 	}
 
-	private boolean agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(Id<TransitStopFacility> stopFacilityId, Id<Person> personId) {
+	/**
+	 * Stores whether there is work for the crane between the stack and the trains and hands the terminal over to the mobsim thread if this has changed,
+	 * i.e. if the number of pending alighters or boarders has crossed zero. A terminal is queued at most once.
+	 */
+	private void updateTrainWorkPending(TerminalControl terminal) {
+		boolean trainWorkPending = terminal.pendingAlighters > 0 || terminal.pendingBoarders > 0;
 		
-		for (Id<Vehicle> train : this.terminal2trains.get(stopFacilityId)) {
-			Id<TransitRoute> trainRouteId = this.train2route.get(train);
-			String nextTrainRouteDescription = this.person2nextTrainRouteDescription.get(personId);
-			
-			if (nextTrainRouteDescription == null) {
-				log.debug("There is no information for agent " + personId);
-				
-			} else {
-				
-				log.debug("Agent " + personId + " has a next leg.");
-				
-				if (nextTrainRouteDescription.contains("\"" + trainRouteId.toString() + "\"")) {
-					// The agent wants to board one of the trains which is currently at the terminal.
-					
-					// check if the agent is able to board the train --> check if the train has available capacities
-					if (this.train2passengers.get(train).size() == this.train2capacity.get(train)) {
-						log.debug("The agent cannot board train " + train + " at stop " + stopFacilityId);
-						
-					} else {
-						log.debug("The agent is about to board train " + train + " at stop " + stopFacilityId);
-						return true;
-					}
-					
-				} else {
-					log.debug("The agent does not want to board train " + train + " at stop " + stopFacilityId);
-				}
+		if (terminal.trainWorkPending != trainWorkPending) {
+			terminal.trainWorkPending = trainWorkPending;
+			if (terminal.queuedForStatusChange.compareAndSet(false, true)) {
+				this.terminalsWithQueueStatusChange.offer(terminal);
 			}
 		}
-
-		return false;
 	}
 
-	private boolean isThereATrainWithAlightingAgents(Id<TransitStopFacility> stopFacilityId) {
-		Id<Link> stopFacilityLink = this.scenario.getTransitSchedule().getFacilities().get(stopFacilityId).getLinkId();
+	private boolean agentWantsToBoardATrainWhichIsCurrentlyAtTheStop(TerminalControl terminal, Id<Person> personId) {
+		
+		Set<Id<Vehicle>> trainsAtTerminal = terminal.trains;
+		if (trainsAtTerminal.isEmpty()) return false;
+		
+		Id<TransitRoute> nextTrainRouteId = this.person2nextTrainRoute.get(personId);
+		if (nextTrainRouteId == null) {
+			log.debug("There is no information for agent {}", personId);
+			return false;
+		}
 		
-		for (Id<Vehicle> train : this.terminal2trains.get(stopFacilityId)) {
-			for (Id<Person> person : this.train2passengers.get(train)) {
-				Id<Link> destinationStopLinkOfThatPerson = this.person2destinationStopLink.get(person);
+		for (Id<Vehicle> train : trainsAtTerminal) {
+			if (nextTrainRouteId == this.train2route.get(train)) {
+				// The agent wants to board one of the trains which is currently at the terminal.
 				
-				if (stopFacilityLink.toString().equals(destinationStopLinkOfThatPerson.toString())) {
-					// This agent who is on the train wants to alight at the current transit stop.
+				// check if the agent is able to board the train --> check if the train has available capacities
+				if (isFull(train)) {
+					log.debug("The agent cannot board train {} at stop {}", train, terminal.id);
 					
+				} else {
+					log.debug("The agent is about to board train {} at stop {}", train, terminal.id);
 					return true;
 				}
+				
+			} else {
+				log.debug("The agent does not want to board train {} at stop {}", train, terminal.id);
 			}
-
 		}
+
 		return false;
 	}
+
+	private boolean isFull(Id<Vehicle> train) {
+		return this.train2occupancy[train.index()] == this.train2capacity[train.index()];
+	}
+
+	/**
+	 * @return the number of passengers on the train who want to get off at the given transit stop
+	 */
+	private int getAlightingPassengers(Id<Vehicle> train, Id<TransitStopFacility> stopFacilityId) {
+		return this.train2alightersPerStopLink.get(train)[this.stop2stopLinkIndex.get(stopFacilityId)];
+	}
+
+	/**
+	 * Grows the index-based array if Ids have been created after the array was allocated.
+	 */
+	private static int[] ensureCapacity(int[] array, int size, int initialValue) {
+		if (array.length >= size) return array;
+		int oldLength = array.length;
+		int[] newArray = Arrays.copyOf(array, Math.max(size, oldLength + oldLength / 2));
+		Arrays.fill(newArray, oldLength, newArray.length, initialValue);
+		return newArray;
+	}
+	
+	/**
+	 * @return the links given in the transit stop attribute which is written by {@link GenerateCargoSupply}, null if there is no such attribute
+	 */
+	private Set<Link> getLinksFromStopAttribute(TransitStopFacility terminal, String attribute) {
+		
+		Object linkIds = terminal.getAttributes().getAttribute(attribute);
+		if (linkIds == null) return null;
+		
+		Set<Link> links = new HashSet<>();
+		for (String linkId : ((String) linkIds).split(",")) {
+			Link link = this.scenario.getNetwork().getLinks().get(Id.createLinkId(linkId.trim()));
+			if (link == null) throw new RuntimeException("Link " + linkId + " given in attribute '" + attribute + "' of terminal " + terminal.getId() + " is not in the network. Aborting...");
+			links.add(link);
+		}
+		
+		if (links.isEmpty()) throw new RuntimeException("Attribute '" + attribute + "' of terminal " + terminal.getId() + " is empty. Aborting...");
+		
+		return links;
+	}
+	
+	private void logMissingTerminalLinkAttributes(TransitStopFacility terminal) {
+		if (!this.terminalLinksByNamingConvention) {
+			log.warn("Terminal " + terminal.getId() + " has no '" + GenerateCargoSupply.QUEUE_LINKS_ATTRIBUTE + "' / '" + GenerateCargoSupply.STACK_LINKS_ATTRIBUTE + "' attributes. "
+					+ "Searching the queue and stack links in the network based on the link naming. This is slow for large networks, consider re-generating the supply.");
+			log.warn("This message is only given once.");
+			this.terminalLinksByNamingConvention = true;
+		}
+	}
 	
 	private Set<Link> getQueueLinks(Id<TransitStopFacility> facilityId) {
 		
@@ -589,8 +904,26 @@ public class TerminalQueueDeactivationEventHandler implements
 		return links;
 	}
 	
-	public Map<Id<TransitStopFacility>, Set<Id<Vehicle>>> getTerminal2trains() {
-		return terminal2trains;
+	private static CraneServicePolicy createCraneServicePolicy(IntermodalFreightConfigGroup ifCfg) {
+		if (ifCfg.getCraneServiceApproach() == CraneServiceApproach.TrainPriority) {
+			return new TrainPriorityCraneServicePolicy();
+			
+		} else if (ifCfg.getCraneServiceApproach() == CraneServiceApproach.TimeSliced) {
+			return new TimeSlicedCraneServicePolicy(ifCfg.getCraneTrainServiceSlot(), ifCfg.getCraneTruckServiceSlot());
+			
+		} else {
+			throw new RuntimeException("Unknown crane service approach. Aborting...");
+		}
+	}
+	
+	/**
+	 * The returned object is thread-safe and may be read by the transit stop handlers while the events are processed.
+	 * 
+	 * @return the crane resource of the terminal, null if the terminal is unknown
+	 */
+	public TerminalCraneResource getCraneResource(Id<TransitStopFacility> terminalId) {
+		TerminalControl terminal = this.terminals.get(terminalId);
+		return terminal == null ? null : terminal.craneResource;
 	}
 
 }
@@ -0,0 +1,61 @@
+package ch.sbb.intermodalfreight.simulate;
+
+/**
+ * 
+ * The crane alternates between serving the trains only and sharing the crane between the trains and the trucks:
+ * As long as there are containers waiting to be loaded or unloaded between the stack and a train at the terminal,
+ * the truck-stack queue is deactivated for the train service slot and then activated for the truck service slot, and so on.
+ * The truck-stack queue is always active if there is nothing to do for the trains.
+ * 
+ * The trains are not paused during the truck service slot. The trucks obtain a share of the crane,
+ * i.e. the trains continue to be served with a larger time per container (see {@link TerminalCraneResource#getContainerTimeFactor()}),
+ * or with the same time per container if the terminal capacity is not reduced ({@link IntermodalFreightConfigGroup.TerminalCapacityApproach}).
+ * The policy does not know whether there are trucks in the queue, i.e. the crane is also shared during the truck service slot if no truck is waiting.
+ * 
+ * @author ikaddoura
+ *
+ */
+public class TimeSlicedCraneServicePolicy implements CraneServicePolicy {
+	
+	private final double trainServiceSlot;
+	private final double truckServiceSlot;
+	
+	/**
+	 * @param trainServiceSlot the time in seconds the crane serves the trains only before it is shared with the trucks
+	 * @param truckServiceSlot the time in seconds the crane is shared between the trains and the trucks before returning to the trains only
+	 */
+	public TimeSlicedCraneServicePolicy(double trainServiceSlot, double truckServiceSlot) {
+		if (trainServiceSlot <= 0. || truckServiceSlot <= 0.) {
+			throw new RuntimeException("The crane service slots must be larger than zero. Aborting...");
+		}
+		this.trainServiceSlot = trainServiceSlot;
+		this.truckServiceSlot = truckServiceSlot;
+	}
+
+	@Override
+	public boolean isQueueActive(boolean trainWorkPending, boolean queueActive, double queueStatusSince, double now) {
+		if (!trainWorkPending) {
+			return true;
+		}
+		if (queueActive) {
+			// serve the trucks until the end of the truck service slot
+			return now - queueStatusSince < this.truckServiceSlot;
+		} else {
+			// serve the trains until the end of the train service slot
+			return now - queueStatusSince >= this.trainServiceSlot;
+		}
+	}
+
+	@Override
+	public double getNextDecisionTime(boolean trainWorkPending, boolean queueActive, double queueStatusSince) {
+		if (!trainWorkPending) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (queueActive) {
+			return queueStatusSince + this.truckServiceSlot;
+		} else {
+			return queueStatusSince + this.trainServiceSlot;
+		}
+	}
+
+}
@@ -0,0 +1,23 @@
+package ch.sbb.intermodalfreight.simulate;
+
+/**
+ * 
+ * The trains have priority: The truck-stack queue is deactivated as long as there are containers waiting to be loaded or unloaded
+ * between the stack and a train at the terminal.
+ * 
+ * @author ikaddoura
+ *
+ */
+public class TrainPriorityCraneServicePolicy implements CraneServicePolicy {
+
+	@Override
+	public boolean isQueueActive(boolean trainWorkPending, boolean queueActive, double queueStatusSince, double now) {
+		return !trainWorkPending;
+	}
+
+	@Override
+	public double getNextDecisionTime(boolean trainWorkPending, boolean queueActive, double queueStatusSince) {
+		return Double.POSITIVE_INFINITY;
+	}
+
+}
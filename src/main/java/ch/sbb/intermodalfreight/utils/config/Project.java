@@ -180,6 +180,7 @@ public final class Project {
         private static final String SUPPLY_INPUT_DISTANCES_KEY = "matsim.input.supply.distances";
         private static final String SUPPLY_TRAIN_CAPACITY_KEY = "matsim.input.supply.train.capacity";
         private static final String SUPPLY_NETWORK_NIGHT_HGV_RESTRICTION_KEY = "matsim.input.supply.network.night.hgv.restriction";
+        private static final String SUPPLY_NETWORK_NIGHT_HGV_RESTRICTION_GROUPED_KEY = "matsim.input.supply.network.night.hgv.restriction.grouped";
 
         private final double craneLinkLength;
         private final double craneTravelTime;
@@ -193,6 +194,7 @@ public final class Project {
         private final String terminals;
         private final int trainCapacity;
         private final boolean networkNightHGVRestriction;
+        private final boolean networkNightHGVRestrictionGrouped;
 
         private Supply() {
             craneLinkLength = Double.parseDouble(properties.getProperty(SUPPLY_CRANE_LINK_LENGTH_KEY));
@@ -208,6 +210,8 @@ public final class Project {
             trainCapacity = Integer.parseInt(properties.getProperty(SUPPLY_TRAIN_CAPACITY_KEY));
             networkNightHGVRestriction = Boolean.parseBoolean(
                     properties.getProperty(SUPPLY_NETWORK_NIGHT_HGV_RESTRICTION_KEY));
+            networkNightHGVRestrictionGrouped = Boolean.parseBoolean(
+                    properties.getProperty(SUPPLY_NETWORK_NIGHT_HGV_RESTRICTION_GROUPED_KEY));
 
             checkArgument(craneLinkLength > 0, "Invalid crane link length. It should be greater than 0.");
             checkArgument(craneTravelTime > 0, "Invalid crane travel time. It should be greater than 0.");
@@ -263,6 +267,10 @@ public final class Project {
         public boolean isNetworkNightHGVRestriction() {
             return networkNightHGVRestriction;
         }
+
+        public boolean isNetworkNightHGVRestrictionGrouped() {
+            return networkNightHGVRestrictionGrouped;
+        }
     }
 
     public class MatsimRun {
@@ -119,6 +119,12 @@ public class AddCargoSupplyTest {
 				supply.addTerminalAndConnectToRoadNetwork(terminal);
 			}
 			
+			// the queue and stack links are stored in the transit stop attributes
+			Assert.assertEquals("Terminal links have changed.", "t1_t1_IN1_carKV_container-t1_OUT1_carKV_container",
+					terminals.get("t1").getStop().getAttributes().getAttribute(GenerateCargoSupply.QUEUE_LINKS_ATTRIBUTE));
+			Assert.assertEquals("Terminal links have changed.", "t1_t1_IN-t1_OUT,t1_t1_OUT1_carKV_container-t1_IN",
+					terminals.get("t1").getStop().getAttributes().getAttribute(GenerateCargoSupply.STACK_LINKS_ATTRIBUTE));
+			
 			// then add the transit lines, routes and departures
 			
 			{
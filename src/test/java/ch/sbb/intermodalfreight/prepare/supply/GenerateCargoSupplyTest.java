@@ -0,0 +1,317 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.prepare.supply;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkChangeEvent;
+import org.matsim.core.network.NetworkChangeEvent.ChangeValue;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.collections.Tuple;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class GenerateCargoSupplyTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	/**
+	 * The grouped night ban requires fewer events but results in the same flow capacity and number of lanes of each link at any time.
+	 */
+	@Test
+	public final void testGroupedHGVnightRestriction() {
+		Scenario scenario = createScenario();
+		GenerateCargoSupply supply = new GenerateCargoSupply(scenario, createCarNetwork(), 600., 216., 3);
+		supply.addHGVnightRestriction(false);
+		List<NetworkChangeEvent> events = supply.getNetworkChangeEvents();
+		
+		Scenario groupedScenario = createScenario();
+		GenerateCargoSupply groupedSupply = new GenerateCargoSupply(groupedScenario, createCarNetwork(), 600., 216., 3);
+		groupedSupply.addHGVnightRestriction(true);
+		List<NetworkChangeEvent> groupedEvents = groupedSupply.getNetworkChangeEvents();
+		
+		// 4 car links x (1 + 3 days x 2) events vs. (1 + 3 days x (2 capacity / lanes combinations + 1)) events
+		Assert.assertEquals(28, events.size());
+		Assert.assertEquals(10, groupedEvents.size());
+		
+		Set<Double> times = new TreeSet<>();
+		times.add(0.);
+		for (NetworkChangeEvent event : events) {
+			times.add(event.getStartTime());
+		}
+		
+		for (Link link : scenario.getNetwork().getLinks().values()) {
+			Link groupedLink = groupedScenario.getNetwork().getLinks().get(link.getId());
+			for (double time : times) {
+				double[] capacityAndLanes = getCapacityAndLanes(events, link, time);
+				double[] groupedCapacityAndLanes = getCapacityAndLanes(groupedEvents, groupedLink, time);
+				Assert.assertEquals("Different flow capacity of link " + link.getId() + " at " + time, capacityAndLanes[0], groupedCapacityAndLanes[0], 0.);
+				Assert.assertEquals("Different number of lanes of link " + link.getId() + " at " + time, capacityAndLanes[1], groupedCapacityAndLanes[1], 0.);
+			}
+		}
+		
+		// the rail link is not restricted
+		Link railLink = groupedScenario.getNetwork().getLinks().get(Id.createLinkId("rail"));
+		Assert.assertEquals(railLink.getFlowCapacityPerSec(), getCapacityAndLanes(groupedEvents, railLink, 23 * 3600.)[0], 0.);
+	}
+	
+	/**
+	 * The terminals are connected to the nodes of the scenario network which are the nearest connectable nodes of the car only network,
+	 * the same nodes as found by a linear scan. If several nodes have the same distance, the node with the lowest id is used.
+	 */
+	@Test
+	public final void testNearestNode() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		addGrid(scenario.getNetwork());
+		Network carNetwork = NetworkUtils.createNetwork();
+		addGrid(carNetwork);
+		
+		GenerateCargoSupply supply = new GenerateCargoSupply(scenario, carNetwork, 600., 216., 3);
+		
+		Coord[] coords = {
+				new Coord(500., 500.), // same distance to all nodes
+				new Coord(500., 0.), // same distance to node 1 and node 2
+				new Coord(1000., 500.), // same distance to node 2 and node 4
+				new Coord(400., 400.), // the nearest node (5) has no outgoing link
+				new Coord(600., 1000.),
+				new Coord(900., 1100.),
+				new Coord(-5000., 20000.)
+		};
+		String[] expectedNodes = { "1", "1", "2", "1", "4", "4", "3" };
+		
+		for (int i = 0; i < coords.length; i++) {
+			Node node = supply.getNearestNode(coords[i]);
+			Assert.assertEquals("Wrong nearest node for " + coords[i], expectedNodes[i], node.getId().toString());
+			Assert.assertEquals("Different node than the linear scan for " + coords[i], getNearestNodeByLinearScan(carNetwork, coords[i]).getId(), node.getId());
+			Assert.assertSame("Not the node of the scenario network.", scenario.getNetwork().getNodes().get(node.getId()), node);
+		}
+	}
+	
+	/**
+	 * Adding several terminals at once (with the geometry and the nearest nodes computed in parallel) results in the same network,
+	 * transit stops and network change events as adding the terminals one by one.
+	 */
+	@Test
+	public final void testAddTerminals() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		addGrid(scenario.getNetwork());
+		Network carNetwork = NetworkUtils.createNetwork();
+		addGrid(carNetwork);
+		GenerateCargoSupply supply = new GenerateCargoSupply(scenario, carNetwork, 600., 216., 3);
+		for (Terminal terminal : createTerminals()) {
+			supply.addTerminalAndConnectToRoadNetwork(terminal);
+		}
+		
+		Scenario bulkScenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		addGrid(bulkScenario.getNetwork());
+		Network bulkCarNetwork = NetworkUtils.createNetwork();
+		addGrid(bulkCarNetwork);
+		GenerateCargoSupply bulkSupply = new GenerateCargoSupply(bulkScenario, bulkCarNetwork, 600., 216., 3);
+		bulkSupply.addTerminalsAndConnectToRoadNetwork(createTerminals());
+		
+		// network
+		Network network = scenario.getNetwork();
+		Network bulkNetwork = bulkScenario.getNetwork();
+		Assert.assertEquals(network.getNodes().size(), bulkNetwork.getNodes().size());
+		Assert.assertEquals(network.getLinks().size(), bulkNetwork.getLinks().size());
+		for (Node node : network.getNodes().values()) {
+			Node bulkNode = bulkNetwork.getNodes().get(node.getId());
+			Assert.assertNotNull("Missing node " + node.getId(), bulkNode);
+			Assert.assertEquals(node.getCoord(), bulkNode.getCoord());
+		}
+		for (Link link : network.getLinks().values()) {
+			Link bulkLink = bulkNetwork.getLinks().get(link.getId());
+			Assert.assertNotNull("Missing link " + link.getId(), bulkLink);
+			Assert.assertEquals(link.getFromNode().getId(), bulkLink.getFromNode().getId());
+			Assert.assertEquals(link.getToNode().getId(), bulkLink.getToNode().getId());
+			Assert.assertSame(bulkNetwork.getNodes().get(bulkLink.getFromNode().getId()), bulkLink.getFromNode());
+			Assert.assertSame(bulkNetwork.getNodes().get(bulkLink.getToNode().getId()), bulkLink.getToNode());
+			Assert.assertEquals(link.getAllowedModes(), bulkLink.getAllowedModes());
+			Assert.assertEquals(link.getLength(), bulkLink.getLength(), 0.);
+			Assert.assertEquals(link.getFreespeed(), bulkLink.getFreespeed(), 0.);
+			Assert.assertEquals(link.getCapacity(), bulkLink.getCapacity(), 0.);
+			Assert.assertEquals(link.getNumberOfLanes(), bulkLink.getNumberOfLanes(), 0.);
+		}
+		
+		// transit stops
+		Assert.assertEquals(scenario.getTransitSchedule().getFacilities().size(), bulkScenario.getTransitSchedule().getFacilities().size());
+		for (TransitStopFacility stop : scenario.getTransitSchedule().getFacilities().values()) {
+			TransitStopFacility bulkStop = bulkScenario.getTransitSchedule().getFacilities().get(stop.getId());
+			Assert.assertNotNull("Missing transit stop " + stop.getId(), bulkStop);
+			Assert.assertEquals(stop.getLinkId(), bulkStop.getLinkId());
+			for (String attribute : List.of("accessTime", "egressTime", GenerateCargoSupply.QUEUE_LINKS_ATTRIBUTE, GenerateCargoSupply.STACK_LINKS_ATTRIBUTE)) {
+				Assert.assertNotNull(stop.getAttributes().getAttribute(attribute));
+				Assert.assertEquals(stop.getAttributes().getAttribute(attribute), bulkStop.getAttributes().getAttribute(attribute));
+			}
+		}
+		
+		// network change events
+		List<NetworkChangeEvent> events = supply.getNetworkChangeEvents();
+		List<NetworkChangeEvent> bulkEvents = bulkSupply.getNetworkChangeEvents();
+		Assert.assertFalse(events.isEmpty());
+		Assert.assertEquals(events.size(), bulkEvents.size());
+		for (int i = 0; i < events.size(); i++) {
+			NetworkChangeEvent event = events.get(i);
+			NetworkChangeEvent bulkEvent = bulkEvents.get(i);
+			Assert.assertEquals(event.getStartTime(), bulkEvent.getStartTime(), 0.);
+			Assert.assertEquals(getLinkIds(event), getLinkIds(bulkEvent));
+			Assert.assertEquals(event.getFlowCapacityChange().getValue(), bulkEvent.getFlowCapacityChange().getValue(), 0.);
+			Assert.assertEquals(event.getLanesChange().getValue(), bulkEvent.getLanesChange().getValue(), 0.);
+		}
+	}
+	
+	private static List<Id<Link>> getLinkIds(NetworkChangeEvent event) {
+		List<Id<Link>> linkIds = new ArrayList<>();
+		for (Link link : event.getLinks()) {
+			linkIds.add(link.getId());
+		}
+		return linkIds;
+	}
+	
+	/**
+	 * Terminals with different operating times, one of them with two modes, all connected to the grid (see {@link #addGrid(Network)}).
+	 */
+	private static List<Terminal> createTerminals() {
+		List<Terminal> terminals = new ArrayList<>();
+		terminals.add(new Terminal("T1", "T1", "T1", new Coord(0., 2000.), Map.of(KVModes.CAR_KV_CONTAINER, 30.), Map.of(KVModes.CAR_KV_CONTAINER, new Tuple<Double, Double>(0., 24 * 3600.))));
+		terminals.add(new Terminal("T2", "T2", "T2", new Coord(3000., 500.), Map.of(KVModes.CAR_KV_CONTAINER, 20.), Map.of(KVModes.CAR_KV_CONTAINER, new Tuple<Double, Double>(6 * 3600., 22 * 3600.))));
+		terminals.add(new Terminal("T3", "T3", "T3", new Coord(1500., 1500.), Map.of(KVModes.CAR_KV_CONTAINER, 25.), Map.of(KVModes.CAR_KV_CONTAINER, new Tuple<Double, Double>(5 * 3600., 24 * 3600.))));
+		terminals.add(new Terminal("T4", "T4", "T4", new Coord(-1000., -1000.), Map.of(KVModes.CAR_KV_CONTAINER, 40.), Map.of(KVModes.CAR_KV_CONTAINER, new Tuple<Double, Double>(0., 20 * 3600.))));
+		terminals.add(new Terminal("T5", "T5", "T5", new Coord(500., 2500.),
+				Map.of(KVModes.CAR_KV_CONTAINER, 30., KVModes.CAR_KV_TEU, 10.), Map.of(KVModes.CAR_KV_CONTAINER, new Tuple<Double, Double>(4 * 3600., 23 * 3600.), KVModes.CAR_KV_TEU, new Tuple<Double, Double>(8 * 3600., 18 * 3600.))));
+		return terminals;
+	}
+	
+	/**
+	 * @return the nearest node with both ingoing and outgoing links, the node with the lowest id if several nodes have the same distance
+	 */
+	private static Node getNearestNodeByLinearScan(Network network, Coord coord) {
+		Node nearestNode = null;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for (Node node : network.getNodes().values()) {
+			if (node.getInLinks().isEmpty() || node.getOutLinks().isEmpty()) continue;
+			
+			double distance = NetworkUtils.getEuclideanDistance(coord, node.getCoord());
+			if (distance < nearestDistance || (distance == nearestDistance && node.getId().compareTo(nearestNode.getId()) < 0)) {
+				nearestNode = node;
+				nearestDistance = distance;
+			}
+		}
+		return nearestNode;
+	}
+	
+	/**
+	 * A square of car links between the nodes 1-4 and a node 5 in the middle with an ingoing link only.
+	 */
+	private static void addGrid(Network network) {
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Node node3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("3"), new Coord(0., 1000.));
+		Node node4 = NetworkUtils.createAndAddNode(network, Id.createNodeId("4"), new Coord(1000., 1000.));
+		Node node5 = NetworkUtils.createAndAddNode(network, Id.createNodeId("5"), new Coord(500., 500.));
+		
+		Node[][] nodePairs = { { node1, node2 }, { node1, node3 }, { node2, node4 }, { node3, node4 } };
+		for (Node[] nodePair : nodePairs) {
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(nodePair[0].getId() + "-" + nodePair[1].getId()), nodePair[0], nodePair[1], 1000., 20., 1000., 1.);
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(nodePair[1].getId() + "-" + nodePair[0].getId()), nodePair[1], nodePair[0], 1000., 20., 1000., 1.);
+		}
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("1-5"), node1, node5, 800., 20., 1000., 1.);
+		
+		for (Link link : network.getLinks().values()) {
+			link.setAllowedModes(Set.of("car"));
+		}
+	}
+	
+	/**
+	 * Applies the absolute flow capacity and number of lanes changes of a link up to the given time.
+	 * 
+	 * @return the flow capacity and the number of lanes
+	 */
+	private static double[] getCapacityAndLanes(List<NetworkChangeEvent> events, Link link, double time) {
+		List<NetworkChangeEvent> sortedEvents = new ArrayList<>(events);
+		sortedEvents.sort((event1, event2) -> Double.compare(event1.getStartTime(), event2.getStartTime()));
+		
+		double[] capacityAndLanes = { link.getFlowCapacityPerSec(), link.getNumberOfLanes() };
+		for (NetworkChangeEvent event : sortedEvents) {
+			if (event.getStartTime() > time) break;
+			if (!event.getLinks().contains(link)) continue;
+			
+			ChangeValue flowCapacityChange = event.getFlowCapacityChange();
+			if (flowCapacityChange != null) capacityAndLanes[0] = flowCapacityChange.getValue();
+			ChangeValue lanesChange = event.getLanesChange();
+			if (lanesChange != null) capacityAndLanes[1] = lanesChange.getValue();
+		}
+		return capacityAndLanes;
+	}
+	
+	/**
+	 * A scenario with car links of two different capacity / number of lanes combinations and a rail link.
+	 */
+	private static Scenario createScenario() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		Network network = scenario.getNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Node node3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("3"), new Coord(2000., 0.));
+		
+		// flow capacities which are not exactly representable
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("1-2"), node1, node2, 1000., 20., 1000., 1.);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("2-1"), node2, node1, 1000., 20., 1000., 1.);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("2-3"), node2, node3, 1000., 20., 2000., 2.);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("3-2"), node3, node2, 1000., 20., 2000., 2.);
+		for (Link link : network.getLinks().values()) {
+			link.setAllowedModes(Set.of("car"));
+		}
+		
+		Link railLink = NetworkUtils.createAndAddLink(network, Id.createLinkId("rail"), node1, node3, 2000., 30., 1000., 1.);
+		railLink.setAllowedModes(Set.of("rail"));
+		return scenario;
+	}
+	
+	private static Network createCarNetwork() {
+		Network network = NetworkUtils.createNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Link link1 = NetworkUtils.createAndAddLink(network, Id.createLinkId("1-2"), node1, node2, 1000., 20., 1000., 1.);
+		Link link2 = NetworkUtils.createAndAddLink(network, Id.createLinkId("2-1"), node2, node1, 1000., 20., 1000., 1.);
+		link1.setAllowedModes(Set.of("car"));
+		link2.setAllowedModes(Set.of("car"));
+		return network;
+	}
+	
+}
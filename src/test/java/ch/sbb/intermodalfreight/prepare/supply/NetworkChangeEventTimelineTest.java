@@ -0,0 +1,166 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.prepare.supply;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkChangeEvent;
+import org.matsim.core.network.NetworkChangeEvent.ChangeType;
+import org.matsim.core.network.NetworkChangeEvent.ChangeValue;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class NetworkChangeEventTimelineTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testMergeEvents() {
+		Network network = NetworkUtils.createNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Link link1 = NetworkUtils.createAndAddLink(network, Id.createLinkId("1"), node1, node2, 1000., 10., 1000., 1.);
+		Link link2 = NetworkUtils.createAndAddLink(network, Id.createLinkId("2"), node2, node1, 1000., 10., 1000., 1.);
+		
+		NetworkChangeEventTimeline timeline = new NetworkChangeEventTimeline();
+		timeline.add(createEvent(20 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 0.));
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 1000. / 3600.));
+		timeline.add(createEvent(20 * 3600., link2, ChangeType.ABSOLUTE_IN_SI_UNITS, 0.));
+		timeline.add(createEvent(6 * 3600., link2, ChangeType.ABSOLUTE_IN_SI_UNITS, 1000. / 3600.));
+		
+		// relative changes are not merged
+		timeline.add(createEvent(12 * 3600., link1, ChangeType.FACTOR, 0.5));
+		timeline.add(createEvent(12 * 3600., link2, ChangeType.FACTOR, 0.5));
+		
+		List<NetworkChangeEvent> events = timeline.build();
+		Assert.assertEquals(6, timeline.getNumberOfAddedEvents());
+		Assert.assertEquals(4, events.size());
+		
+		Assert.assertEquals(6 * 3600., events.get(0).getStartTime(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(2, events.get(0).getLinks().size());
+		Assert.assertEquals(12 * 3600., events.get(1).getStartTime(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(1, events.get(1).getLinks().size());
+		Assert.assertEquals(12 * 3600., events.get(2).getStartTime(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(20 * 3600., events.get(3).getStartTime(), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(2, events.get(3).getLinks().size());
+		Assert.assertEquals(0., events.get(3).getFlowCapacityChange().getValue(), MatsimTestUtils.EPSILON);
+	}
+	
+	@Test
+	public final void testExcludeLinks() {
+		Network network = NetworkUtils.createNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Link link1 = NetworkUtils.createAndAddLink(network, Id.createLinkId("1"), node1, node2, 1000., 10., 1000., 1.);
+		Link link2 = NetworkUtils.createAndAddLink(network, Id.createLinkId("2"), node2, node1, 1000., 10., 1000., 1.);
+		
+		NetworkChangeEvent multiLinkEvent = createEvent(20 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 0.);
+		multiLinkEvent.addLink(link2);
+		
+		NetworkChangeEventTimeline timeline = new NetworkChangeEventTimeline().excludeLinks(List.of(link1.getId()));
+		timeline.add(multiLinkEvent);
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 1000. / 3600.));
+		
+		List<NetworkChangeEvent> events = timeline.build();
+		Assert.assertEquals(1, events.size());
+		Assert.assertEquals(1, events.get(0).getLinks().size());
+		Assert.assertEquals(link2, events.get(0).getLinks().iterator().next());
+		Assert.assertEquals(2, timeline.getNumberOfPrunedLinks());
+		Assert.assertEquals(1, timeline.getNumberOfDroppedEvents());
+	}
+	
+	/**
+	 * Events with the same time which change the same link must be applied in the order in which they were added.
+	 */
+	@Test
+	public final void testConflictingEventsAtTheSameTime() {
+		Network network = NetworkUtils.createNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Link link1 = NetworkUtils.createAndAddLink(network, Id.createLinkId("1"), node1, node2, 1000., 10., 1000., 1.);
+		Link link2 = NetworkUtils.createAndAddLink(network, Id.createLinkId("2"), node2, node1, 1000., 10., 1000., 1.);
+		
+		// absolute change on another link, relative change on link 1, then the same absolute change on link 1
+		NetworkChangeEventTimeline timeline = new NetworkChangeEventTimeline();
+		timeline.add(createEvent(6 * 3600., link2, ChangeType.ABSOLUTE_IN_SI_UNITS, 100.));
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.FACTOR, 0.5));
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 100.));
+		List<NetworkChangeEvent> events = timeline.build();
+		Assert.assertEquals(100., getFlowCapacity(events, link1, 10.), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(100., getFlowCapacity(events, link2, 10.), MatsimTestUtils.EPSILON);
+		
+		// open, close and open again
+		timeline = new NetworkChangeEventTimeline();
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 10.));
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 0.));
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 10.));
+		events = timeline.build();
+		Assert.assertEquals(10., getFlowCapacity(events, link1, 1.), MatsimTestUtils.EPSILON);
+		
+		// events without any conflict in between are still merged
+		timeline = new NetworkChangeEventTimeline();
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.ABSOLUTE_IN_SI_UNITS, 10.));
+		timeline.add(createEvent(6 * 3600., link1, ChangeType.FACTOR, 0.5));
+		timeline.add(createEvent(6 * 3600., link2, ChangeType.ABSOLUTE_IN_SI_UNITS, 10.));
+		events = timeline.build();
+		Assert.assertEquals(2, events.size());
+		Assert.assertEquals(2, events.get(0).getLinks().size());
+		Assert.assertEquals(5., getFlowCapacity(events, link1, 1.), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(10., getFlowCapacity(events, link2, 1.), MatsimTestUtils.EPSILON);
+	}
+	
+	/**
+	 * Applies the flow capacity changes of a link in the given order.
+	 */
+	private static double getFlowCapacity(List<NetworkChangeEvent> events, Link link, double flowCapacity) {
+		for (NetworkChangeEvent event : events) {
+			if (!event.getLinks().contains(link) || event.getFlowCapacityChange() == null) continue;
+			
+			ChangeValue change = event.getFlowCapacityChange();
+			if (change.getType() == ChangeType.ABSOLUTE_IN_SI_UNITS) {
+				flowCapacity = change.getValue();
+			} else if (change.getType() == ChangeType.FACTOR) {
+				flowCapacity = flowCapacity * change.getValue();
+			} else {
+				flowCapacity = flowCapacity + change.getValue();
+			}
+		}
+		return flowCapacity;
+	}
+	
+	private static NetworkChangeEvent createEvent(double time, Link link, ChangeType type, double flowCapacity) {
+		NetworkChangeEvent event = new NetworkChangeEvent(time);
+		event.addLink(link);
+		event.setFlowCapacityChange(new ChangeValue(type, flowCapacity));
+		return event;
+	}
+	
+}
@@ -0,0 +1,224 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.simulate;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.mobsim.qsim.interfaces.MobsimVehicle;
+import org.matsim.core.mobsim.qsim.pt.PTPassengerAgent;
+import org.matsim.core.mobsim.qsim.pt.PassengerAccessEgress;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.mockito.Mockito;
+
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.ContainerTransferApproach;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class ContainerTransitStopHandlerTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	/**
+	 * 4 leaving and 4 entering containers, 2 seconds per container.
+	 * One crane moves the containers one after the other, two cranes move a leaving and an entering container at the same time.
+	 */
+	@Test
+	public final void testParallelCranes() {
+		// 1 second to open the doors + 8 containers x 2 seconds + 1 second to close the doors
+		Assert.assertEquals(18., getStopDuration(1, 4, 4), MatsimTestUtils.EPSILON);
+		
+		// 1 second to open the doors + 4 x 2 seconds + 1 second to close the doors
+		Assert.assertEquals(10., getStopDuration(2, 4, 4), MatsimTestUtils.EPSILON);
+		
+		// the cranes also share the leaving containers: 1 second to open the doors + 2 x 2 seconds (or 1 x 2 seconds) + 1 second to close the doors
+		Assert.assertEquals(6., getStopDuration(2, 4, 0), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(4., getStopDuration(4, 4, 0), MatsimTestUtils.EPSILON);
+	}
+	
+	/**
+	 * The batched container transfer moves the containers at the same times as the serial container transfer, but requires fewer calls.
+	 */
+	@Test
+	public final void testBatchedContainerTransfer() {
+		for (int[] containers : new int[][] { { 4, 4 }, { 5, 0 }, { 0, 3 }, { 1, 1 } }) {
+			int[] serialCalls = new int[1];
+			int[] batchedCalls = new int[1];
+			List<Double> serialTimes = getContainerTimes(ContainerTransferApproach.Serial, containers[0], containers[1], serialCalls);
+			List<Double> batchedTimes = getContainerTimes(ContainerTransferApproach.Batched, containers[0], containers[1], batchedCalls);
+			
+			Assert.assertEquals(containers[0] + containers[1] + 1, serialTimes.size());
+			Assert.assertEquals("Different container times for " + containers[0] + " leaving and " + containers[1] + " entering containers.", serialTimes, batchedTimes);
+			Assert.assertTrue("The batched container transfer does not reduce the number of calls.", batchedCalls[0] < serialCalls[0]);
+		}
+	}
+	
+	@Test
+	public final void testContainerTransitStopTimes() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		TransitStopFacility stop = addStop(scenario, "terminalWithCranes", 3);
+		TransitStopFacility stopWithoutCraneCount = addStop(scenario, "terminalWithoutCraneCount", 0);
+		TransitStopFacility stopWithoutTimes = scenario.getTransitSchedule().getFactory().createTransitStopFacility(Id.create("terminalWithoutTimes", TransitStopFacility.class), new Coord(0., 0.), false);
+		scenario.getTransitSchedule().addStopFacility(stopWithoutTimes);
+		
+		ContainerTransitStopTimes stopTimes = new ContainerTransitStopTimes(scenario.getTransitSchedule());
+		
+		Assert.assertEquals(2., stopTimes.getAccessTime(stop.getId()), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(2., stopTimes.getEgressTime(stop.getId()), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(3, stopTimes.getCraneCount(stop.getId()));
+		Assert.assertEquals(1, stopTimes.getCraneCount(stopWithoutCraneCount.getId()));
+		
+		// stops which were created after the stop times
+		Assert.assertEquals(1, stopTimes.getCraneCount(Id.create("terminalCreatedLater", TransitStopFacility.class)));
+		
+		try {
+			stopTimes.getAccessTime(stopWithoutTimes.getId());
+			Assert.fail("Expecting an exception for a stop without access and egress times.");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		
+		addStop(scenario, "terminalWithoutCranes", 0).getAttributes().putAttribute(ContainerTransitStopTimes.CRANE_COUNT_ATTRIBUTE, 0);
+		try {
+			new ContainerTransitStopTimes(scenario.getTransitSchedule());
+			Assert.fail("Expecting an exception for a stop without cranes.");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * @return the time from the arrival of a train with parallel door operation until the doors are closed again
+	 */
+	private double getStopDuration(int craneCount, int leavingContainers, int enteringContainers) {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig(new IntermodalFreightConfigGroup()));
+		TransitStopFacility stop = addStop(scenario, "terminal_" + craneCount + "_" + leavingContainers + "_" + enteringContainers, craneCount);
+		
+		VehicleType trainType = VehicleUtils.createVehicleType(Id.create("train", VehicleType.class));
+		VehicleUtils.setDoorOperationMode(trainType, VehicleType.DoorOperationMode.parallel);
+		Vehicle train = VehicleUtils.createVehicle(Id.createVehicleId("train"), trainType);
+		
+		TerminalQueueDeactivationEventHandler queueEventHandler = Mockito.mock(TerminalQueueDeactivationEventHandler.class);
+		Mockito.when(queueEventHandler.getCraneResource(any())).thenReturn(new TerminalCraneResource());
+		
+		PassengerAccessEgress accessEgress = Mockito.mock(PassengerAccessEgress.class);
+		Mockito.when(accessEgress.handlePassengerLeaving(any(), any(), any(), anyDouble())).thenReturn(true);
+		Mockito.when(accessEgress.handlePassengerEntering(any(), any(), any(), anyDouble())).thenReturn(true);
+		
+		List<PTPassengerAgent> leavingPassengers = createContainers(leavingContainers);
+		List<PTPassengerAgent> enteringPassengers = createContainers(enteringContainers);
+		
+		ContainerTransitStopHandler stopHandler = new ContainerTransitStopHandler(train, queueEventHandler, scenario, new ContainerTransitStopTimes(scenario.getTransitSchedule()));
+		
+		double now = 8 * 3600.;
+		double stopTime;
+		while ((stopTime = stopHandler.handleTransitStop(stop, now, leavingPassengers, enteringPassengers, accessEgress, Mockito.mock(MobsimVehicle.class))) > 0.) {
+			now += stopTime;
+		}
+		
+		Assert.assertTrue("Not all containers were moved.", leavingPassengers.isEmpty() && enteringPassengers.isEmpty());
+		return now - 8 * 3600.;
+	}
+	
+	/**
+	 * A stop with 12.5 seconds per leaving and 7.3 seconds per entering container (not a multiple of a second) and a batch horizon of 60 seconds.
+	 * 
+	 * @param calls returns the number of calls of the stop handler
+	 * @return the times at which the containers leave and enter the train, followed by the time at which the doors are closed
+	 */
+	private List<Double> getContainerTimes(ContainerTransferApproach containerTransferApproach, int leavingContainers, int enteringContainers, int[] calls) {
+		IntermodalFreightConfigGroup ifCfg = new IntermodalFreightConfigGroup();
+		ifCfg.setContainerTransferApproach(containerTransferApproach);
+		ifCfg.setContainerTransferBatchHorizon(60.);
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig(ifCfg));
+		TransitStopFacility stop = addStop(scenario, "terminal_" + containerTransferApproach + "_" + leavingContainers + "_" + enteringContainers, 0);
+		stop.getAttributes().putAttribute(ContainerTransitStopTimes.EGRESS_TIME_ATTRIBUTE, 12.5);
+		stop.getAttributes().putAttribute(ContainerTransitStopTimes.ACCESS_TIME_ATTRIBUTE, 7.3);
+		
+		VehicleType trainType = VehicleUtils.createVehicleType(Id.create("train", VehicleType.class));
+		VehicleUtils.setDoorOperationMode(trainType, VehicleType.DoorOperationMode.serial);
+		Vehicle train = VehicleUtils.createVehicle(Id.createVehicleId("train"), trainType);
+		
+		TerminalQueueDeactivationEventHandler queueEventHandler = Mockito.mock(TerminalQueueDeactivationEventHandler.class);
+		Mockito.when(queueEventHandler.getCraneResource(any())).thenReturn(new TerminalCraneResource());
+		
+		List<Double> times = new ArrayList<>();
+		PassengerAccessEgress accessEgress = Mockito.mock(PassengerAccessEgress.class);
+		Mockito.when(accessEgress.handlePassengerLeaving(any(), any(), any(), anyDouble())).thenAnswer(invocation -> times.add(invocation.getArgument(3)));
+		Mockito.when(accessEgress.handlePassengerEntering(any(), any(), any(), anyDouble())).thenAnswer(invocation -> times.add(invocation.getArgument(3)));
+		
+		List<PTPassengerAgent> leavingPassengers = createContainers(leavingContainers);
+		List<PTPassengerAgent> enteringPassengers = createContainers(enteringContainers);
+		
+		ContainerTransitStopHandler stopHandler = new ContainerTransitStopHandler(train, queueEventHandler, scenario, new ContainerTransitStopTimes(scenario.getTransitSchedule()));
+		
+		double now = 8 * 3600.;
+		double stopTime;
+		while ((stopTime = stopHandler.handleTransitStop(stop, now, leavingPassengers, enteringPassengers, accessEgress, Mockito.mock(MobsimVehicle.class))) > 0.) {
+			now += stopTime;
+			calls[0]++;
+		}
+		
+		Assert.assertTrue("Not all containers were moved.", leavingPassengers.isEmpty() && enteringPassengers.isEmpty());
+		times.add(now);
+		return times;
+	}
+	
+	private List<PTPassengerAgent> createContainers(int containers) {
+		List<PTPassengerAgent> passengers = new ArrayList<>();
+		for (int i = 0; i < containers; i++) {
+			passengers.add(Mockito.mock(PTPassengerAgent.class));
+		}
+		return passengers;
+	}
+	
+	/**
+	 * @param craneCount the number of cranes, not set if 0
+	 */
+	private TransitStopFacility addStop(Scenario scenario, String id, int craneCount) {
+		TransitStopFacility stop = scenario.getTransitSchedule().getFactory().createTransitStopFacility(Id.create(id, TransitStopFacility.class), new Coord(0., 0.), false);
+		stop.setLinkId(Id.create(id, Link.class));
+		stop.getAttributes().putAttribute(ContainerTransitStopTimes.ACCESS_TIME_ATTRIBUTE, 2.);
+		stop.getAttributes().putAttribute(ContainerTransitStopTimes.EGRESS_TIME_ATTRIBUTE, 2.);
+		if (craneCount > 0) {
+			stop.getAttributes().putAttribute(ContainerTransitStopTimes.CRANE_COUNT_ATTRIBUTE, craneCount);
+		}
+		scenario.getTransitSchedule().addStopFacility(stop);
+		return stop;
+	}
+	
+}
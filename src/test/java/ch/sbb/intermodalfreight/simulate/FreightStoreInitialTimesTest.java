@@ -0,0 +1,121 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.simulate;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ActivityParams;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scoring.functions.ScoringParameters;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
+import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class FreightStoreInitialTimesTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	/**
+	 * The initial times are only stored for scored activities and the scored activity types are only looked up once per subpopulation.
+	 */
+	@Test
+	public final void testStoreInitialTimes() {
+		Config config = ConfigUtils.createConfig(new IntermodalFreightConfigGroup());
+		
+		ActivityParams originParams = new ActivityParams("freight-origin");
+		originParams.setTypicalDuration(8 * 3600.);
+		config.planCalcScore().addActivityParams(originParams);
+		
+		ActivityParams destinationParams = new ActivityParams("freight-destination");
+		destinationParams.setTypicalDuration(8 * 3600.);
+		config.planCalcScore().addActivityParams(destinationParams);
+		
+		ActivityParams transferParams = new ActivityParams("freight-transfer");
+		transferParams.setScoringThisActivityAtAll(false);
+		config.planCalcScore().addActivityParams(transferParams);
+		
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		Person container0 = scenario.getPopulation().getFactory().createPerson(Id.createPersonId("container0"));
+		Person container1 = scenario.getPopulation().getFactory().createPerson(Id.createPersonId("container1"));
+		scenario.getPopulation().addPerson(container0);
+		scenario.getPopulation().addPerson(container1);
+		
+		// count the look-ups of the scoring parameters
+		int[] lookups = new int[1];
+		ScoringParametersForPerson subpopulationScoringParameters = new SubpopulationScoringParameters(scenario);
+		ScoringParametersForPerson scoringParameters = new ScoringParametersForPerson() {
+			@Override
+			public ScoringParameters getScoringParameters(Person person) {
+				lookups[0]++;
+				return subpopulationScoringParameters.getScoringParameters(person);
+			}
+		};
+		
+		FreightScoringRecords scoringRecords = new FreightScoringRecords((IntermodalFreightConfigGroup) config.getModules().get(IntermodalFreightConfigGroup.GROUP_NAME));
+		FreightStoreInitialTimes initialTimes = new FreightStoreInitialTimes(scenario, scoringRecords, scoringParameters);
+		
+		// the records are filled at startup, there are no desired times yet
+		scoringRecords.updateAll(scenario.getPopulation());
+		Assert.assertTrue(scoringRecords.contains(container0.getId()));
+		Assert.assertTrue(Double.isNaN(scoringRecords.getDesiredDeparture(container0.getId())));
+		
+		Id<Link> linkId = Id.createLinkId("link");
+		Coord coord = new Coord(0., 0.);
+		
+		// not scored
+		initialTimes.handleEvent(new ActivityEndEvent(1800., container0.getId(), linkId, null, "freight-transfer", coord));
+		Assert.assertNull(container0.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME));
+		
+		// interaction activities are ignored
+		initialTimes.handleEvent(new ActivityEndEvent(2000., container0.getId(), linkId, null, "pt interaction", coord));
+		Assert.assertNull(container0.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME));
+		
+		initialTimes.handleEvent(new ActivityEndEvent(3600., container0.getId(), linkId, null, "freight-origin", coord));
+		initialTimes.handleEvent(new ActivityEndEvent(4000., container1.getId(), linkId, null, "freight-origin", coord));
+		initialTimes.handleEvent(new ActivityStartEvent(7200., container0.getId(), linkId, null, "freight-destination", coord));
+		initialTimes.handleEvent(new ActivityStartEvent(9000., container1.getId(), linkId, null, "freight-destination", coord));
+		
+		Assert.assertEquals(3600., (double) container0.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(7200., (double) container0.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(4000., (double) container1.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(9000., (double) container1.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME), MatsimTestUtils.EPSILON);
+		
+		// the scoring records are refreshed
+		Assert.assertEquals(3600., scoringRecords.getDesiredDeparture(container0.getId()), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(9000., scoringRecords.getDesiredArrival(container1.getId()), MatsimTestUtils.EPSILON);
+		
+		// both persons belong to the same (default) subpopulation
+		Assert.assertEquals("The scoring parameters should only be looked up once per subpopulation.", 1, lookups[0]);
+	}
+	
+}
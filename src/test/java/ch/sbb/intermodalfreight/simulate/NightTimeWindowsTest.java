@@ -0,0 +1,96 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.simulate;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class NightTimeWindowsTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testDefaultNightTimeWindows() {
+		NightTimeWindows nightTimeWindows = NightTimeWindows.DEFAULT;
+
+		// the night ends at 5 a.m. and starts right after 10 p.m.
+		Assert.assertEquals(true, nightTimeWindows.isNight(5 * 3600. - 1.));
+		Assert.assertEquals(false, nightTimeWindows.isNight(5 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isNight(22 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isNight(22 * 3600. + 0.5));
+		Assert.assertEquals(true, nightTimeWindows.isNight(22 * 3600. + 1.));
+
+		// a leg which starts at exactly 5 a.m. or ends at exactly 10 p.m. is not a night leg
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(5 * 3600., 8 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(8 * 3600., 22 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(5 * 3600., 22 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(5 * 3600. - 0.5, 8 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(8 * 3600., 22 * 3600. + 0.5));
+
+		// legs which cross midnight
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(20 * 3600., 24 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(23 * 3600., 24 * 3600. + 1 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(24 * 3600. + 23 * 3600., 2 * 24 * 3600. + 4 * 3600.));
+
+		// the same as the previous rule
+		Assert.assertEquals(FreightPenaltyHandler.legWasDuringNight(5 * 3600., 22 * 3600.), nightTimeWindows.isDuringNight(5 * 3600., 22 * 3600.));
+	}
+
+	@Test
+	public final void testLegAcrossMidnight() {
+		// a night time window which does not include midnight
+		NightTimeWindows nightTimeWindows = new NightTimeWindows("01:00:00-02:00:00", "", "");
+
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(23 * 3600., 24 * 3600. + 0.5 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(23 * 3600., 24 * 3600. + 1.5 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(24 * 3600. + 23 * 3600., 2 * 24 * 3600. + 1 * 3600. - 1.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(24 * 3600. + 23 * 3600., 2 * 24 * 3600. + 1 * 3600.));
+
+		Assert.assertEquals(0, nightTimeWindows.getNightSeconds(23 * 3600., 24 * 3600. + 0.5 * 3600.));
+		Assert.assertEquals(1800, nightTimeWindows.getNightSeconds(23 * 3600., 24 * 3600. + 1.5 * 3600.));
+	}
+
+	@Test
+	public final void testWeekendNightTimeWindows() {
+		// night from 10 p.m. till 6 a.m., no driving at all on the second simulated day
+		NightTimeWindows nightTimeWindows = new NightTimeWindows("00:00:00-06:00:00,22:00:00-24:00:00", "1", "00:00:00-24:00:00");
+
+		Assert.assertEquals(true, nightTimeWindows.isNight(5.5 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isNight(6 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isNight(24 * 3600. + 12 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isNight(7 * 24 * 3600. + 12 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isNight(8 * 24 * 3600. + 12 * 3600.));
+
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(8 * 3600., 10 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(24 * 3600. + 8 * 3600., 24 * 3600. + 10 * 3600.));
+		Assert.assertEquals(true, nightTimeWindows.isDuringNight(6 * 24 * 3600. + 20 * 3600., 7 * 24 * 3600. + 8 * 3600.));
+		Assert.assertEquals(false, nightTimeWindows.isDuringNight(7 * 24 * 3600. + 8 * 3600., 7 * 24 * 3600. + 10 * 3600.));
+
+		Assert.assertEquals(2 * 3600, nightTimeWindows.getNightSeconds(20 * 3600., 24 * 3600.));
+		Assert.assertEquals(2 * 3600 + 24 * 3600, nightTimeWindows.getNightSeconds(20 * 3600., 2 * 24 * 3600.));
+		Assert.assertEquals(0, nightTimeWindows.getNightSeconds(8 * 3600., 10 * 3600.));
+	}	
+	
+}
@@ -18,19 +18,37 @@
  * *********************************************************************** */
 package ch.sbb.intermodalfreight.simulate;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
 import org.apache.logging.log4j.LogManager;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
 import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.controler.Controler;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.utils.io.IOUtils;
 import org.matsim.testcases.MatsimTestUtils;
 
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.ContainerTransferApproach;
+import ch.sbb.intermodalfreight.simulate.IntermodalFreightConfigGroup.PenaltyScoringApproach;
+
 /**
  * @author ikaddoura
  *
@@ -142,6 +160,255 @@ public class RunIntermodalFreightScenarioTest {
 		}
 	}
 
+	/**
+	 * Same as testCorridorOneIteration but with config switches which should not affect the simulation, i.e. the modes and scores should not change:
+	 * - the terminal crane metrics
+	 * - the penalties applied by the scoring function instead of person score events
+	 * - both of them
+	 *
+	 */
+	@Test
+	public final void testCorridorOneIterationConfigSwitches() {
+
+		try {
+			Map<String, Consumer<IntermodalFreightConfigGroup>> configSwitches = new LinkedHashMap<>();
+			configSwitches.put("craneMetrics", ifCfg -> ifCfg.setWriteTerminalCraneMetrics(true));
+			configSwitches.put("penaltyScoringFunction", ifCfg -> ifCfg.setPenaltyScoringApproach(PenaltyScoringApproach.ScoringFunction));
+			configSwitches.put("craneMetricsAndPenaltyScoringFunction", ifCfg -> {
+				ifCfg.setWriteTerminalCraneMetrics(true);
+				ifCfg.setPenaltyScoringApproach(PenaltyScoringApproach.ScoringFunction);
+			});
+
+			for (Map.Entry<String, Consumer<IntermodalFreightConfigGroup>> configSwitch : configSwitches.entrySet()) {
+				String name = configSwitch.getKey();
+				Controler controler = runCorridorOneIteration(utils.getOutputDirectory() + name + "/", configSwitch.getValue());
+				Scenario scenario = controler.getScenario();
+
+				// car score
+				Assert.assertEquals("Modes have changed: " + name, "car", getLegModes(scenario.getPopulation().getPersons().get(Id.createPersonId("container0")).getSelectedPlan()));
+				Assert.assertEquals("Scores have changed: " + name, 579.65, scenario.getPopulation().getPersons().get(Id.createPersonId("container0")).getSelectedPlan().getScore(), MatsimTestUtils.EPSILON);
+
+				// rail container, not delayed
+				Assert.assertEquals("Modes have changed: " + name, "carKV_TEU---pt---carKV_TEU", getLegModes(scenario.getPopulation().getPersons().get(Id.createPersonId("container1")).getSelectedPlan()));
+				Assert.assertEquals("Scores have changed: " + name, 831.6735602167748, scenario.getPopulation().getPersons().get(Id.createPersonId("container1")).getSelectedPlan().getScore(), MatsimTestUtils.EPSILON);
+
+				// rail container, delayed
+				Assert.assertEquals("Modes have changed: " + name, "carKV_TEU---pt---carKV_TEU", getLegModes(scenario.getPopulation().getPersons().get(Id.createPersonId("container2")).getSelectedPlan()));
+				Assert.assertEquals("Scores have changed: " + name, -1168.3264397832252, scenario.getPopulation().getPersons().get(Id.createPersonId("container2")).getSelectedPlan().getScore(), MatsimTestUtils.EPSILON);
+
+				IntermodalFreightConfigGroup ifCfg = (IntermodalFreightConfigGroup) scenario.getConfig().getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+				if (ifCfg.isWriteTerminalCraneMetrics()) {
+					checkCraneMetrics(controler);
+				}
+			}
+
+		} catch ( Exception ee ) {
+			ee.printStackTrace();
+			LogManager.getLogger(this.getClass()).fatal("there was an exception: \n" + ee ) ;
+
+			// if one catches an exception, then one needs to explicitly fail the test:
+			Assert.fail();
+		}
+	}
+
+	private void checkCraneMetrics(Controler controler) throws IOException {
+		String metricsFile = controler.getControlerIO().getIterationFilename(0, "terminalCraneMetrics.csv.gz");
+		String summaryFile = controler.getControlerIO().getIterationFilename(0, "terminalCraneSummary.csv");
+		Assert.assertTrue("Missing crane metrics.", new File(metricsFile).exists());
+		Assert.assertTrue("Missing crane summary.", new File(summaryFile).exists());
+
+		// each train departure is written as a record and counted in the summary
+		int trainDepartures = 0;
+		int queueDeactivations = 0;
+		try (BufferedReader reader = IOUtils.getBufferedReader(metricsFile)) {
+			Assert.assertEquals("terminal;time;type;duration;queueVehicles;stackVehicles", reader.readLine());
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String type = line.split(";")[2];
+				if (type.equals("trainDeparted")) trainDepartures++;
+				if (type.equals("queueDeactivated")) queueDeactivations++;
+			}
+		}
+		Assert.assertTrue("The queue was never deactivated although there are rail containers.", queueDeactivations > 0);
+
+		int summaryTrains = 0;
+		int summaryFlips = 0;
+		try (BufferedReader reader = IOUtils.getBufferedReader(summaryFile)) {
+			Assert.assertEquals("terminal;activeTime;deactiveTime;flips;trains;averageDwellTime;maxDwellTime", reader.readLine());
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.split(";");
+				// the queue is either active or deactive from the start to the end of the simulation (00:00:00 - 24:00:00)
+				Assert.assertEquals("Wrong queue status durations at terminal " + columns[0], 24 * 3600., Double.parseDouble(columns[1]) + Double.parseDouble(columns[2]), MatsimTestUtils.EPSILON);
+				summaryFlips += Integer.parseInt(columns[3]);
+				summaryTrains += Integer.parseInt(columns[4]);
+			}
+		}
+		Assert.assertTrue("No train departures were recorded.", trainDepartures > 0);
+		Assert.assertEquals("The summary does not match the train records.", trainDepartures, summaryTrains);
+		Assert.assertTrue("The summary does not match the queue records.", summaryFlips >= queueDeactivations);
+	}
+
+	/**
+	 * Same as testCorridorOneIteration but the containers are moved in batches. The batched container transfer moves the containers at the same times
+	 * as the serial container transfer, i.e. the modes and the departure times should be the same.
+	 *
+	 */
+	@Test
+	public final void testCorridorOneIterationBatchedContainerTransfer() {
+
+		try {
+			double batchHorizon = 60.;
+			Controler serialControler = runCorridorOneIteration(utils.getOutputDirectory() + "serial/", ifCfg -> ifCfg.setContainerTransferApproach(ContainerTransferApproach.Serial));
+			Controler batchedControler = runCorridorOneIteration(utils.getOutputDirectory() + "batched/", ifCfg -> {
+				ifCfg.setContainerTransferApproach(ContainerTransferApproach.Batched);
+				ifCfg.setContainerTransferBatchHorizon(batchHorizon);
+			});
+			Scenario serialScenario = serialControler.getScenario();
+			Scenario batchedScenario = batchedControler.getScenario();
+
+			Map<Id<Person>, List<Double>> serialDepartureTimes = getDepartureTimes(serialControler);
+			Map<Id<Person>, List<Double>> batchedDepartureTimes = getDepartureTimes(batchedControler);
+
+			for (String containerId : new String[] {"container0", "container1", "container2"}) {
+				Plan serialPlan = serialScenario.getPopulation().getPersons().get(Id.createPersonId(containerId)).getSelectedPlan();
+				Plan batchedPlan = batchedScenario.getPopulation().getPersons().get(Id.createPersonId(containerId)).getSelectedPlan();
+				Assert.assertEquals("Modes differ from the serial container transfer.", getLegModes(serialPlan), getLegModes(batchedPlan));
+
+				List<Double> serialTimes = serialDepartureTimes.get(Id.createPersonId(containerId));
+				List<Double> batchedTimes = batchedDepartureTimes.get(Id.createPersonId(containerId));
+				Assert.assertEquals("The number of departures differs from the serial container transfer.", serialTimes.size(), batchedTimes.size());
+				for (int i = 0; i < serialTimes.size(); i++) {
+					Assert.assertEquals("Departure times differ from the serial container transfer.", serialTimes.get(i), batchedTimes.get(i), batchHorizon);
+				}
+			}
+
+			// the serial container transfer remains the default
+			Assert.assertEquals("Scores have changed.", 831.6735602167748, serialScenario.getPopulation().getPersons().get(Id.createPersonId("container1")).getSelectedPlan().getScore(), MatsimTestUtils.EPSILON);
+
+		} catch ( Exception ee ) {
+			ee.printStackTrace();
+			LogManager.getLogger(this.getClass()).fatal("there was an exception: \n" + ee ) ;
+
+			// if one catches an exception, then one needs to explicitly fail the test:
+			Assert.fail();
+		}
+	}
+
+	/**
+	 * @return the departure times of each person in the events of the first iteration
+	 */
+	private Map<Id<Person>, List<Double>> getDepartureTimes(Controler controler) {
+		Map<Id<Person>, List<Double>> departureTimes = new HashMap<>();
+		EventsManager events = EventsUtils.createEventsManager();
+		events.addHandler((PersonDepartureEventHandler) event -> departureTimes.computeIfAbsent(event.getPersonId(), personId -> new ArrayList<>()).add(event.getTime()));
+		EventsUtils.readEvents(events, controler.getControlerIO().getIterationFilename(0, "events.xml.gz"));
+		return departureTimes;
+	}
+
+	/**
+	 * @param configSwitch applies the settings of the run to the intermodal freight config group
+	 */
+	private Controler runCorridorOneIteration(String outputDirectory, Consumer<IntermodalFreightConfigGroup> configSwitch) {
+		String [] args = {utils.getClassInputDirectory() + "config.xml",
+			  "--config:controler.outputDirectory", outputDirectory,
+			  "--config:controler.lastIteration", "0"
+		} ;
+		Config config = RunIntermodalFreightScenario.prepareConfig(args);
+
+		IntermodalFreightConfigGroup ifCfg = (IntermodalFreightConfigGroup) config.getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		configSwitch.accept(ifCfg);
+
+		config.network().setInputFile("cargoNetwork.xml.gz");
+		config.network().setChangeEventsInputFile("cargoTerminalNetworkChangeEvents.xml.gz");
+		config.network().setTimeVariantNetwork(true);
+
+		config.transit().setTransitScheduleFile("cargoTransitSchedule.xml.gz");
+		config.transit().setVehiclesFile("cargoTransitVehicles.xml.gz");
+		config.plans().setInputFile("plans.xml");
+
+		Scenario scenario = RunIntermodalFreightScenario.prepareScenario(config);
+		Controler controler = RunIntermodalFreightScenario.prepareControler(scenario);
+		controler.run();
+		return controler;
+	}
+
+	/**
+	 * Two iterations with the parallel events manager, the handler which stores the initial times is removed after the initial iteration.
+	 * The initial times and the scores should be the same as if the handler is kept.
+	 * If all persons already have the initial times, the handler is removed at startup and the initial times remain unchanged.
+	 *
+	 */
+	@Test
+	public final void testCorridorRemoveStoreInitialTimesHandler() {
+
+		try {
+			Scenario scenarioWithHandler = runCorridorTwoIterations(utils.getOutputDirectory() + "keepHandler/", false, null);
+			Scenario scenarioWithoutHandler = runCorridorTwoIterations(utils.getOutputDirectory() + "removeHandler/", true, null);
+
+			for (Person person : scenarioWithHandler.getPopulation().getPersons().values()) {
+				Person otherPerson = scenarioWithoutHandler.getPopulation().getPersons().get(person.getId());
+				Assert.assertNotNull("Missing initial departure time.", otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME));
+				Assert.assertNotNull("Missing initial arrival time.", otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME));
+				Assert.assertEquals("Initial departure times have changed.", person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME), otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME));
+				Assert.assertEquals("Initial arrival times have changed.", person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME), otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME));
+				Assert.assertEquals("Scores have changed.", person.getSelectedPlan().getScore(), otherPerson.getSelectedPlan().getScore(), MatsimTestUtils.EPSILON);
+			}
+
+			// all persons have the initial times, i.e. the handler is removed at startup
+			Scenario scenarioWithInitialTimes = runCorridorTwoIterations(utils.getOutputDirectory() + "removeHandlerAtStartup/", true, scenarioWithHandler);
+			for (Person person : scenarioWithHandler.getPopulation().getPersons().values()) {
+				Person otherPerson = scenarioWithInitialTimes.getPopulation().getPersons().get(person.getId());
+				Assert.assertEquals("Initial departure times have changed.", person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME), otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME));
+				Assert.assertEquals("Initial arrival times have changed.", person.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME), otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME));
+			}
+
+		} catch ( Exception ee ) {
+			ee.printStackTrace();
+			LogManager.getLogger(this.getClass()).fatal("there was an exception: \n" + ee ) ;
+
+			// if one catches an exception, then one needs to explicitly fail the test:
+			Assert.fail();
+		}
+	}
+
+	/**
+	 * @param initialTimesScenario the scenario from which the initial times are copied into the person attributes, may be null
+	 */
+	private Scenario runCorridorTwoIterations(String outputDirectory, boolean removeStoreInitialTimesHandler, Scenario initialTimesScenario) {
+		String [] args = {utils.getClassInputDirectory() + "config.xml",
+			  "--config:controler.outputDirectory", outputDirectory,
+			  "--config:controler.lastIteration", "1"
+		} ;
+		Config config = RunIntermodalFreightScenario.prepareConfig(args);
+
+		IntermodalFreightConfigGroup ifCfg = (IntermodalFreightConfigGroup) config.getModules().get(IntermodalFreightConfigGroup.GROUP_NAME);
+		ifCfg.setRemoveStoreInitialTimesHandlerAfterInitialIteration(removeStoreInitialTimesHandler);
+
+		// use the parallel events manager
+		config.parallelEventHandling().setNumberOfThreads(2);
+
+		config.network().setInputFile("cargoNetwork.xml.gz");
+		config.network().setChangeEventsInputFile("cargoTerminalNetworkChangeEvents.xml.gz");
+		config.network().setTimeVariantNetwork(true);
+
+		config.transit().setTransitScheduleFile("cargoTransitSchedule.xml.gz");
+		config.transit().setVehiclesFile("cargoTransitVehicles.xml.gz");
+		config.plans().setInputFile("plans.xml");
+
+		Scenario scenario = RunIntermodalFreightScenario.prepareScenario(config);
+		if (initialTimesScenario != null) {
+			for (Person person : scenario.getPopulation().getPersons().values()) {
+				Person otherPerson = initialTimesScenario.getPopulation().getPersons().get(person.getId());
+				person.getAttributes().putAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME, otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_DEPARTURE_TIME));
+				person.getAttributes().putAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME, otherPerson.getAttributes().getAttribute(FreightActivityScoring.INITIAL_ARRIVAL_TIME));
+			}
+		}
+		Controler controler = RunIntermodalFreightScenario.prepareControler(scenario);
+		controler.run();
+		return scenario;
+	}
+
 	/**
 	 * Now, we increase the number of iterations compared to testCorridorOneIteration.
      * The delayed container should switch to car.
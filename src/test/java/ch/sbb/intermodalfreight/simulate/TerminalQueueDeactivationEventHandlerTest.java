@@ -0,0 +1,215 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.simulate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.TransitDriverStartsEvent;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.api.experimental.events.VehicleDepartsAtFacilityEvent;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeSimStepEvent;
+import org.matsim.core.mobsim.framework.events.MobsimInitializedEvent;
+import org.matsim.core.mobsim.qsim.interfaces.Netsim;
+import org.matsim.core.mobsim.qsim.interfaces.NetsimLink;
+import org.matsim.core.mobsim.qsim.interfaces.NetsimNetwork;
+import org.matsim.core.mobsim.qsim.interfaces.SignalGroupState;
+import org.matsim.core.mobsim.qsim.interfaces.SignalizeableItem;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import ch.sbb.intermodalfreight.prepare.supply.GenerateCargoSupply;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class TerminalQueueDeactivationEventHandlerTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	/**
+	 * Records the times at which the handler evaluates the policy.
+	 */
+	private static final class RecordingCraneServicePolicy implements CraneServicePolicy {
+
+		private final CraneServicePolicy policy;
+		private final List<Double> decisionTimes = new ArrayList<>();
+
+		private RecordingCraneServicePolicy(CraneServicePolicy policy) {
+			this.policy = policy;
+		}
+
+		@Override
+		public boolean isQueueActive(boolean trainWorkPending, boolean queueActive, double queueStatusSince, double now) {
+			this.decisionTimes.add(now);
+			return this.policy.isQueueActive(trainWorkPending, queueActive, queueStatusSince, now);
+		}
+
+		@Override
+		public double getNextDecisionTime(boolean trainWorkPending, boolean queueActive, double queueStatusSince) {
+			return this.policy.getNextDecisionTime(trainWorkPending, queueActive, queueStatusSince);
+		}
+	}
+
+	/**
+	 * A container arrives at the terminal at 10 and leaves the train at 160. The time-sliced policy (train slot 100, truck slot 50)
+	 * is evaluated when the train work starts, at the next decision times returned by the policy and when the train work ends, but not in between.
+	 */
+	@Test
+	public final void testNextDecisionTime() {
+		Scenario scenario = createScenario();
+		RecordingCraneServicePolicy policy = new RecordingCraneServicePolicy(new TimeSlicedCraneServicePolicy(100., 50.));
+		TerminalQueueDeactivationEventHandler handler = new TerminalQueueDeactivationEventHandler(scenario, null, policy);
+
+		NetsimNetwork netsimNetwork = Mockito.mock(NetsimNetwork.class);
+		Mockito.when(netsimNetwork.getNetsimLink(Id.createLinkId("A_queue"))).thenReturn(createSignalLink());
+		SignalizeableItem signal = (SignalizeableItem) createSignalLink();
+		Mockito.when(netsimNetwork.getNetsimLink(Id.createLinkId("B_queue"))).thenReturn((NetsimLink) signal);
+		Netsim mobsim = Mockito.mock(Netsim.class);
+		Mockito.when(mobsim.getNetsimNetwork()).thenReturn(netsimNetwork);
+
+		handler.reset(0);
+		handler.notifyMobsimInitialized(new MobsimInitializedEvent<>(mobsim));
+
+		Id<Person> driverId = Id.createPersonId("driver");
+		Id<Person> containerId = Id.createPersonId("container");
+		Id<Vehicle> trainId = Id.createVehicleId("train");
+		Id<TransitStopFacility> terminalA = Id.create("A", TransitStopFacility.class);
+		Id<TransitStopFacility> terminalB = Id.create("B", TransitStopFacility.class);
+
+		// the container boards the train at terminal A
+		handler.handleEvent(new TransitDriverStartsEvent(0., driverId, trainId, Id.create("line", TransitLine.class), Id.create("route", TransitRoute.class), Id.create("departure", Departure.class)));
+		handler.handleEvent(new PersonDepartureEvent(0., containerId, Id.createLinkId("A"), TransportMode.pt, TransportMode.pt));
+		handler.handleEvent(new VehicleArrivesAtFacilityEvent(0., trainId, terminalA, 0.));
+		handler.handleEvent(new PersonEntersVehicleEvent(1., containerId, trainId));
+		handler.handleEvent(new VehicleDepartsAtFacilityEvent(2., trainId, terminalA, 0.));
+		simulateSteps(handler, mobsim, 0., 9.);
+		Assert.assertTrue(policy.decisionTimes.isEmpty());
+
+		// the train arrives at terminal B, the trucks are still served until the end of the truck slot (0 + 50)
+		handler.handleEvent(new VehicleArrivesAtFacilityEvent(10., trainId, terminalB, 0.));
+		simulateSteps(handler, mobsim, 10., 49.);
+		Assert.assertEquals(List.of(10.), policy.decisionTimes);
+		Mockito.verify(signal, Mockito.never()).setSignalStateAllTurningMoves(SignalGroupState.RED);
+
+		// the trains are served until the end of the train slot (50 + 100)
+		simulateSteps(handler, mobsim, 50., 149.);
+		Assert.assertEquals(List.of(10., 50.), policy.decisionTimes);
+		Mockito.verify(signal, Mockito.times(1)).setSignalStateAllTurningMoves(SignalGroupState.RED);
+		Mockito.verify(signal, Mockito.times(1)).setSignalStateAllTurningMoves(SignalGroupState.GREEN);
+
+		// the trucks are served again, then the container leaves the train and there is no more work for the trains
+		simulateSteps(handler, mobsim, 150., 159.);
+		Assert.assertEquals(List.of(10., 50., 150.), policy.decisionTimes);
+		Mockito.verify(signal, Mockito.times(2)).setSignalStateAllTurningMoves(SignalGroupState.GREEN);
+
+		handler.handleEvent(new PersonLeavesVehicleEvent(160., containerId, trainId));
+		simulateSteps(handler, mobsim, 160., 400.);
+		Assert.assertEquals(List.of(10., 50., 150., 160.), policy.decisionTimes);
+
+		InOrder inOrder = Mockito.inOrder(signal);
+		inOrder.verify(signal).setSignalStateAllTurningMoves(SignalGroupState.GREEN);
+		inOrder.verify(signal).setSignalStateAllTurningMoves(SignalGroupState.RED);
+		inOrder.verify(signal).setSignalStateAllTurningMoves(SignalGroupState.GREEN);
+		Mockito.verify(signal, Mockito.times(2)).setSignalStateAllTurningMoves(SignalGroupState.GREEN);
+		Mockito.verify(signal, Mockito.times(1)).setSignalStateAllTurningMoves(SignalGroupState.RED);
+	}
+
+	private static NetsimLink createSignalLink() {
+		return Mockito.mock(NetsimLink.class, Mockito.withSettings().extraInterfaces(SignalizeableItem.class));
+	}
+
+	private static void simulateSteps(TerminalQueueDeactivationEventHandler handler, Netsim mobsim, double from, double to) {
+		for (double time = from; time <= to; time++) {
+			handler.notifyMobsimBeforeSimStep(new MobsimBeforeSimStepEvent<>(mobsim, time));
+		}
+	}
+
+	/**
+	 * Two terminals A and B with a queue and a stack link each, a train and a container which travels from A to B.
+	 */
+	private static Scenario createScenario() {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig(new IntermodalFreightConfigGroup()));
+
+		Network network = scenario.getNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		for (String terminal : List.of("A", "B")) {
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(terminal), node1, node2, 1000., 20., 1000., 1.);
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(terminal + "_queue"), node1, node2, 200., 1., 30., 1.);
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(terminal + "_stack"), node2, node1, 200., 1., 1000., 1.);
+
+			TransitStopFacility stop = scenario.getTransitSchedule().getFactory().createTransitStopFacility(Id.create(terminal, TransitStopFacility.class), new Coord(0., 0.), false);
+			stop.setLinkId(Id.createLinkId(terminal));
+			stop.getAttributes().putAttribute(GenerateCargoSupply.QUEUE_LINKS_ATTRIBUTE, terminal + "_queue");
+			stop.getAttributes().putAttribute(GenerateCargoSupply.STACK_LINKS_ATTRIBUTE, terminal + "_stack," + terminal);
+			scenario.getTransitSchedule().addStopFacility(stop);
+		}
+
+		VehicleType trainType = VehicleUtils.createVehicleType(Id.create("train", VehicleType.class));
+		trainType.getCapacity().setSeats(10);
+		trainType.getCapacity().setStandingRoom(0);
+		scenario.getTransitVehicles().addVehicleType(trainType);
+		scenario.getTransitVehicles().addVehicle(VehicleUtils.createVehicle(Id.createVehicleId("train"), trainType));
+
+		PopulationFactory pf = scenario.getPopulation().getFactory();
+		Person container = pf.createPerson(Id.createPersonId("container"));
+		Plan plan = pf.createPlan();
+		plan.addActivity(pf.createActivityFromLinkId("freight-origin", Id.createLinkId("A")));
+		Leg leg = pf.createLeg(TransportMode.pt);
+		leg.setRoute(RouteUtils.createGenericRouteImpl(Id.createLinkId("A"), Id.createLinkId("B")));
+		plan.addLeg(leg);
+		plan.addActivity(pf.createActivityFromLinkId("freight-destination", Id.createLinkId("B")));
+		container.addPlan(plan);
+		container.setSelectedPlan(plan);
+		scenario.getPopulation().addPerson(container);
+
+		return scenario;
+	}
+
+}
@@ -0,0 +1,57 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package ch.sbb.intermodalfreight.simulate;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.testcases.MatsimTestUtils;
+
+/**
+ * @author ikaddoura
+ *
+ */
+public class TimeSlicedCraneServicePolicyTest {
+	
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void testTimeSlices() {
+		CraneServicePolicy policy = new TimeSlicedCraneServicePolicy(1800., 600.);
+		
+		// nothing to do for the trains
+		Assert.assertEquals(true, policy.isQueueActive(false, true, 0., 8 * 3600.));
+		Assert.assertEquals(true, policy.isQueueActive(false, false, 8 * 3600., 8 * 3600. + 10.));
+		Assert.assertEquals(Double.POSITIVE_INFINITY, policy.getNextDecisionTime(false, true, 0.), MatsimTestUtils.EPSILON);
+		
+		// the trucks have been served for a long time, switch to the trains
+		Assert.assertEquals(false, policy.isQueueActive(true, true, 0., 8 * 3600.));
+		
+		// serve the trains until the end of the train service slot
+		Assert.assertEquals(false, policy.isQueueActive(true, false, 8 * 3600., 8 * 3600. + 1799.));
+		Assert.assertEquals(8 * 3600. + 1800., policy.getNextDecisionTime(true, false, 8 * 3600.), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(true, policy.isQueueActive(true, false, 8 * 3600., 8 * 3600. + 1800.));
+		
+		// serve the trucks until the end of the truck service slot
+		Assert.assertEquals(true, policy.isQueueActive(true, true, 8 * 3600. + 1800., 8 * 3600. + 2399.));
+		Assert.assertEquals(8 * 3600. + 2400., policy.getNextDecisionTime(true, true, 8 * 3600. + 1800.), MatsimTestUtils.EPSILON);
+		Assert.assertEquals(false, policy.isQueueActive(true, true, 8 * 3600. + 1800., 8 * 3600. + 2400.));
+	}	
+	
+}